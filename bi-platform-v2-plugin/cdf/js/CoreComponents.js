@@ -2165,9 +2165,11 @@ var TableComponent = BaseComponent.extend({
 var CommentsComponent = BaseComponent.extend({
   update : function() {
 
-    // Set page start and length - for pagination
-    if(typeof this.firstResult == 'undefined'){
-      this.firstResult = 0;
+    // Set page cursor and length - for pagination. Cursors of the pages
+    // before the current one are kept so we can go back
+    if(typeof this.cursor == 'undefined'){
+      this.cursor = "";
+      this.previousCursors = [];
     }
     if(typeof this.maxResults == 'undefined'){
       this.maxResults = 4;
@@ -2178,6 +2180,27 @@ var CommentsComponent = BaseComponent.extend({
       return;
     }
 
+    // Once the first page is shown, only ask what changed since then and
+    // redraw when there's something new. longPollTimeout (ms) has the server
+    // hold the request until a change happens
+    if (this.since && this.previousCursors.length == 0){
+      var myself = this;
+      var args = {
+        action: "since",
+        page: this.page,
+        since: this.since,
+        wait: this.longPollTimeout || 0
+      };
+      $.getJSON(webAppPath + "/content/pentaho-cdf/Comments", args, function(json) {
+        if (typeof json.result == 'undefined' || json.reset || json.result.length > 0){
+          myself.firePageUpdate();
+        } else {
+          myself.since = json.since;
+        }
+      });
+      return;
+    }
+
     this.firePageUpdate();
 
   },
@@ -2191,10 +2214,11 @@ var CommentsComponent = BaseComponent.extend({
     var args = {
       action: "list",
       page: this.page,
-      firstResult: this.firstResult,
-      maxResults: this.maxResults + 1 // Add 1 to maxResults for pagination look-ahead
+      cursor: this.cursor,
+      maxResults: this.maxResults
     };
     $.getJSON(webAppPath + "/content/pentaho-cdf/Comments", args, function(json) {
+      myself.since = json.since;
       myself.processCommentsList(json);
     });
   },
@@ -2259,7 +2283,7 @@ var CommentsComponent = BaseComponent.extend({
     if (json.result.length == 0 ){
       placeHolder.append('<span class="cdfNoComments">No comments yet</span>' );
     }
-    $.each(json.result.slice(0,this.maxResults), // We drop the lookahead item, if any
+    $.each(json.result.slice(0,this.maxResults),
       function(i,comment){
         var bodyClass = comment.isMe?"ui-widget-header":"ui-widget-content";
         placeHolder.append('<dt class="'+ bodyClass +' comment-body"><p>'+comment.comment+'</p></dt>');
@@ -2271,18 +2295,19 @@ var CommentsComponent = BaseComponent.extend({
     // Add pagination support;
     var paginationContent = $('<div class="cdfCommentsPagination ui-helper-clearfix"><ul class="ui-widget"></ul></div>');
     var ul = $("ul",paginationContent);
-    if(this.firstResult > 0){
+    if(this.previousCursors.length > 0){
       ul.append('<li class="ui-state-default ui-corner-all"><span class="cdfCommentPagePrev ui-icon ui-icon-carat-1-w"></a></li>');
       ul.find(".cdfCommentPagePrev").bind("click",function(){
-        myself.firstResult -= myself.maxResults;
+        myself.cursor = myself.previousCursors.pop();
         myself.firePageUpdate();
       });
     }
-    // check if we got a lookahead hit
-    if(this.maxResults < json.result.length) {
+    // the server tells us where the next page starts, if there is one
+    if(json.next) {
       ul.append('<li class="ui-state-default ui-corner-all"><span class="cdfCommentPageNext ui-icon ui-icon-carat-1-e"></a></li>');
       ul.find(".cdfCommentPageNext").bind("click",function(){
-        myself.firstResult += myself.maxResults;
+        myself.previousCursors.push(myself.cursor);
+        myself.cursor = json.next;
         myself.firePageUpdate();
       });
     }
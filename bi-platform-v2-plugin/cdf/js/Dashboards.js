@@ -1370,6 +1370,60 @@ Dashboards.cleanStorage = function(){
   });
 };
 
+// Keyed storage: single keys scoped to a namespace (by default, the current dashboard).
+// The keys of the dashboard being rendered are inlined in Dashboards.keyStorage
+Dashboards.keyStorage = {};
+
+Dashboards.getStorageKey = function(key){
+  var value = Dashboards.keyStorage[key];
+  return value === undefined || value === null ? value : JSON.parse(value);
+};
+
+Dashboards.putStorageKey = function(key, value){
+
+  Dashboards.keyStorage[key] = JSON.stringify(value);
+
+  // Don't do anything for anonymousUser
+  if( Dashboards.context && Dashboards.context.user === "anonymousUser") {
+    return;
+  }
+
+  var args = {
+    action: "putKey",
+    namespace: Dashboards.storageNamespace,
+    key: key,
+    value: Dashboards.keyStorage[key],
+    _: (new Date()).getTime() // Needed so IE doesn't try to be clever and retrieve the response from cache
+  };
+  $.getJSON(webAppPath + "/content/pentaho-cdf/Storage", args, function(json) {
+    if(json.result != true){
+      Dashboards.log("Error saving storage key " + key,'error');
+    }
+  });
+};
+
+Dashboards.deleteStorageKey = function(key){
+
+  delete Dashboards.keyStorage[key];
+
+  // Don't do anything for anonymousUser
+  if( Dashboards.context && Dashboards.context.user === "anonymousUser") {
+    return;
+  }
+
+  var args = {
+    action: "deleteKey",
+    namespace: Dashboards.storageNamespace,
+    key: key,
+    _: (new Date()).getTime() // Needed so IE doesn't try to be clever and retrieve the response from cache
+  };
+  $.getJSON(webAppPath + "/content/pentaho-cdf/Storage", args, function(json) {
+    if(json.result != true){
+      Dashboards.log("Error deleting storage key " + key, 'error');
+    }
+  });
+};
+
 Dashboards.propertiesArrayToObject = function(pArray) {
   var obj = {};
   for (p in pArray) if (pArray.hasOwnProperty(p)) {
@@ -42,6 +42,7 @@ $.i18n.map = {};
  * @param  path			(string, optional) path of directory that contains file to load
  * @param  mode			(string, optional) whether bundles keys are available as JavaScript variables/functions or as a map (eg, 'vars' or 'map')
  * @param  callback     (function, optional) callback function to be called after script is terminated
+ * @param  messages     (object, optional) the bundles' {key: value} pairs, already read; no file is loaded if given
  */
 $.i18n.properties = function(settings) {
 	// set up settings
@@ -58,6 +59,13 @@ $.i18n.properties = function(settings) {
 	}
 	if(settings.language === null) {settings.language='';}
 	
+	// messages that came with the page, merged server side, instead of the bundle files
+	if(settings.messages) {
+		parseMessages(settings.messages, settings.mode);
+		if(settings.callback){ settings.callback(); }
+		return;
+	}
+
 	// load and parse bundle files
 	var files = getFiles(settings.name);
 	for(i=0; i<files.length; i++) {
@@ -113,9 +121,6 @@ function loadAndParseFile(filename, language, mode) {
         success:    function(data, status) {
                        var parsed = '';
                        var parameters = data.split( /\n/ );
-                       var regPlaceHolder = /(\{\d+\})/g;
-                       var regRepPlaceHolder = /\{(\d+)\}/g;
-                       var unicodeRE = /(\\u.{4})/ig;
                        for(var i=0; i<parameters.length; i++ ) {
                            parameters[i] = parameters[i].replace( /^\s\s*/, '' ).replace( /\s\s*$/, '' ); // trim
                            if(parameters[i].length > 0 && parameters[i].match("^#")!="#") { // skip comments
@@ -125,52 +130,7 @@ function loadAndParseFile(filename, language, mode) {
                                    var name = unescape(pair[0]).replace( /^\s\s*/, '' ).replace( /\s\s*$/, '' ); // trim
                                    var value = pair.length == 1 ? "" : pair[1];
                                    for(var s=2;s<pair.length;s++){ value +='=' + pair[s]; }
-                                   value = value.replace( /"/g, '\\"' ); // escape quotation mark (")
-                                   value = value.replace( /^\s\s*/, '' ).replace( /\s\s*$/, '' ); // trim  
-                                   
-                                   /** Mode: bundle keys in a map */
-                                   if(mode == 'map' || mode == 'both') {
-                                       // handle unicode chars possibly left out
-                                       var unicodeMatches = value.match(unicodeRE);
-                                       if(unicodeMatches) {
-                                         for(var u=0; u<unicodeMatches.length; u++) {
-                                            value = value.replace( unicodeMatches[u], unescapeUnicode(unicodeMatches[u]));
-                                         }
-                                       }
-                                       // add to map
-                                       $.i18n.map[name] = value;
-                                   }
-                                   
-                                   /** Mode: bundle keys as vars/functions */
-                                   if(mode == 'vars' || mode == 'both') {
-                                       // make sure namespaced key exists (eg, 'some.key') 
-                                       checkKeyNamespace(name);
-                                       
-                                       // value with variable substitutions
-                                       if(regPlaceHolder.test(value)) {
-                                           var parts = value.split(regPlaceHolder);
-                                           // process function args
-                                           var first = true;
-                                           var fnArgs = '';
-                                           var usedArgs = [];
-                                           for(var p=0; p<parts.length; p++) {
-                                               if(regPlaceHolder.test(parts[p]) && usedArgs.indexOf(parts[p]) == -1) {
-                                                   if(!first) {fnArgs += ',';}
-                                                   fnArgs += parts[p].replace(regRepPlaceHolder, 'v$1');
-                                                   usedArgs.push(parts[p]);
-                                                   first = false;
-                                               }
-                                           }
-                                           parsed += name + '=function(' + fnArgs + '){';
-                                           // process function body
-                                           var fnExpr = '"' + value.replace(regRepPlaceHolder, '"+v$1+"') + '"';
-                                           parsed += 'return ' + fnExpr + ';' + '};';
-                                           
-                                       // simple value
-                                       }else{
-                                           parsed += name+'="'+value+'";';
-                                       }
-                                   }
+                                   parsed += parseMessage(name, value, mode);
                                }
                            }
                        }
@@ -179,6 +139,72 @@ function loadAndParseFile(filename, language, mode) {
     });
 }
 
+/** Parse messages already read from .properties files, as {key: value} */
+function parseMessages(messages, mode) {
+    var parsed = '';
+    for(var name in messages) {
+        if(messages.hasOwnProperty(name)) {
+            parsed += parseMessage(name, messages[name], mode);
+        }
+    }
+    eval(parsed);
+}
+
+/** Add one message to the map and/or return the code declaring its var/function */
+function parseMessage(name, value, mode) {
+    var parsed = '';
+    var regPlaceHolder = /(\{\d+\})/g;
+    var regRepPlaceHolder = /\{(\d+)\}/g;
+    var unicodeRE = /(\\u.{4})/ig;
+    value = value.replace( /"/g, '\\"' ); // escape quotation mark (")
+    value = value.replace( /^\s\s*/, '' ).replace( /\s\s*$/, '' ); // trim
+
+    /** Mode: bundle keys in a map */
+    if(mode == 'map' || mode == 'both') {
+        // handle unicode chars possibly left out
+        var unicodeMatches = value.match(unicodeRE);
+        if(unicodeMatches) {
+          for(var u=0; u<unicodeMatches.length; u++) {
+             value = value.replace( unicodeMatches[u], unescapeUnicode(unicodeMatches[u]));
+          }
+        }
+        // add to map
+        $.i18n.map[name] = value;
+    }
+
+    /** Mode: bundle keys as vars/functions */
+    if(mode == 'vars' || mode == 'both') {
+        // make sure namespaced key exists (eg, 'some.key')
+        checkKeyNamespace(name);
+
+        // value with variable substitutions
+        if(regPlaceHolder.test(value)) {
+            var parts = value.split(regPlaceHolder);
+            // process function args
+            var first = true;
+            var fnArgs = '';
+            var usedArgs = [];
+            for(var p=0; p<parts.length; p++) {
+                if(regPlaceHolder.test(parts[p]) && usedArgs.indexOf(parts[p]) == -1) {
+                    if(!first) {fnArgs += ',';}
+                    fnArgs += parts[p].replace(regRepPlaceHolder, 'v$1');
+                    usedArgs.push(parts[p]);
+                    first = false;
+                }
+            }
+            parsed += name + '=function(' + fnArgs + '){';
+            // process function body
+            var fnExpr = '"' + value.replace(regRepPlaceHolder, '"+v$1+"') + '"';
+            parsed += 'return ' + fnExpr + ';' + '};';
+
+        // simple value
+        }else{
+            parsed += name+'="'+value+'";';
+        }
+    }
+    return parsed;
+}
+
 /** Make sure namespace exists (for keys with dots in name) */
 function checkKeyNamespace(key) {
 	var regDot = /\./;
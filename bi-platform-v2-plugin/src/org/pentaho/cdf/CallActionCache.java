@@ -0,0 +1,362 @@
+package org.pentaho.cdf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.pentaho.cdf.utils.LRUCache;
+import org.pentaho.cdf.utils.SingleFlight;
+import org.pentaho.platform.api.engine.IParameterProvider;
+import org.pentaho.platform.api.engine.IPentahoSession;
+import org.pentaho.platform.api.engine.IPluginResourceLoader;
+import org.pentaho.platform.engine.core.system.PentahoSystem;
+import org.pentaho.platform.engine.security.SecurityParameterProvider;
+
+/**
+ * Cache of /CallAction outputs, for read only actions that dashboards call
+ * over and over with the same parameters. Opt in: an action is cached when it
+ * is listed in settings/call-action-cache/actions or when the request has
+ * cache=true.
+ * <p/>
+ * Outputs of listed actions are keyed by action, parameters and the user's
+ * roles, so only actions whose output depends on nothing else may be listed.
+ * Outputs cached because the request asked for it are only the user's, their
+ * key has the user name too. They're kept for a time to live
+ * (settings/call-action-cache/ttl, or the request's cacheDuration if
+ * shorter, in seconds) in an LRU bounded by bytes.
+ * <p/>
+ * Identical calls of a cached action arriving while it runs don't run it
+ * again: they wait for the running one and get its output.
+ */
+public class CallActionCache {
+
+    private static final Log logger = LogFactory.getLog(CallActionCache.class);
+    private static CallActionCache instance;
+    private static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+    private static final long DEFAULT_TTL = 300;
+    /* Request parameters that control caching, or bust browser caches, rather than go to the action */
+    private static final Set<String> IGNORED_PARAMETERS = new HashSet<String>(Arrays.asList("cache", "cacheDuration", "_"));
+    private final LRUCache<String, CachedOutput> outputs;
+    private final SingleFlight<String, CachedOutput> running = new SingleFlight<String, CachedOutput>();
+    private final boolean enabled;
+    private final long ttl;
+    private final long maxEntrySize;
+    private final Set<String> cachedActions = new HashSet<String>();
+    /**
+     * Bumped when an action is evicted, so outputs of it computed before
+     * then and stored after aren't reachable.
+     */
+    private final Map<String, Long> generations = new HashMap<String, Long>();
+
+    private static class CachedOutput {
+
+        final boolean success;
+        /* Null when it was too big to keep */
+        final byte[] bytes;
+        final long expires;
+
+        CachedOutput(final boolean success, final byte[] bytes, final long expires) {
+            this.success = success;
+            this.bytes = bytes;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Copies what's written into a buffer as well, until it gets too big to
+     * be worth caching. Keeps the action going when the client goes away, as
+     * others may be waiting for its output.
+     */
+    private static class CapturingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final long limit;
+        private ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        private boolean clientGone;
+
+        CapturingOutputStream(final OutputStream out, final long limit) {
+            this.out = out;
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (captured != null) {
+                if (captured.size() + len > limit) {
+                    captured = null;
+                } else {
+                    captured.write(b, off, len);
+                }
+            }
+            if (clientGone) {
+                checkUseful();
+                return;
+            }
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                clientGone = true;
+                logger.debug("Client went away, running the action for the ones waiting");
+                checkUseful();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!clientGone) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    clientGone = true;
+                }
+            }
+        }
+
+        /**
+         * Fails when the output has no one to go to.
+         */
+        private void checkUseful() throws IOException {
+            if (captured == null) {
+                throw new IOException("Client went away");
+            }
+        }
+
+        /**
+         * @return everything written, or null if it was too big
+         */
+        byte[] getCaptured() {
+            return captured != null ? captured.toByteArray() : null;
+        }
+    }
+
+    public static synchronized CallActionCache getInstance() {
+        if (instance == null) {
+            instance = new CallActionCache();
+        }
+        return instance;
+    }
+
+    private CallActionCache() {
+
+        final IPluginResourceLoader resLoader = PentahoSystem.get(IPluginResourceLoader.class, null);
+        enabled = "true".equalsIgnoreCase(resLoader.getPluginSetting(CallActionCache.class, "settings/call-action-cache/enabled"));
+        final long cacheSize = getSetting(resLoader, "size", DEFAULT_CACHE_SIZE);
+        ttl = getSetting(resLoader, "ttl", DEFAULT_TTL);
+        // One output may take at most a quarter of the cache
+        maxEntrySize = cacheSize / 4;
+
+        final String actions = resLoader.getPluginSetting(CallActionCache.class, "settings/call-action-cache/actions");
+        if (actions != null) {
+            for (final String action : actions.split(",")) {
+                if (action.trim().length() > 0) {
+                    cachedActions.add(normalizeAction(action.trim()));
+                }
+            }
+        }
+
+        outputs = new LRUCache<String, CachedOutput>(cacheSize) {
+
+            @Override
+            protected long sizeOf(final CachedOutput value) {
+                return value.bytes.length;
+            }
+        };
+        logger.debug("CallAction cache " + (enabled ? "enabled, size: " + cacheSize : "disabled"));
+    }
+
+    private static long getSetting(final IPluginResourceLoader resLoader, final String name, final long defaultValue) {
+        final String value = resLoader.getPluginSetting(CallActionCache.class, "settings/call-action-cache/" + name);
+        return value != null && value.trim().length() > 0 ? Long.parseLong(value.trim()) : defaultValue;
+    }
+
+    private static String normalizeAction(final String actionPath) {
+        return actionPath.replaceAll("/+", "/").replaceAll("^/", "");
+    }
+
+    /**
+     * Runs the action as ServiceCallAction.execute would, answering from the
+     * cache when the action is cached and its output there.
+     *
+     * @return true if the action ran successfully, or came from the cache
+     */
+    public boolean execute(final IParameterProvider requestParams, final IPentahoSession userSession, final OutputStream out) throws IOException {
+
+        final ServiceCallAction serviceCallAction = ServiceCallAction.getInstance();
+        final String actionPath = normalizeAction(ServiceCallAction.getActionPath(requestParams));
+        if (!isCached(actionPath, requestParams)) {
+            return serviceCallAction.execute(requestParams, userSession, out);
+        }
+
+        final String key = getKey(actionPath, requestParams, userSession);
+        final CachedOutput cached = outputs.get(key);
+        if (cached != null && cached.expires > System.currentTimeMillis()) {
+            out.write(cached.bytes);
+            return true;
+        }
+
+        // Identical calls arriving meanwhile wait for this one
+        final boolean[] ran = new boolean[1];
+        final CachedOutput output;
+        try {
+            output = running.execute(key, new Callable<CachedOutput>() {
+
+                public CachedOutput call() throws IOException {
+                    ran[0] = true;
+                    final CapturingOutputStream capturing = new CapturingOutputStream(out, maxEntrySize);
+                    final boolean success = serviceCallAction.execute(requestParams, userSession, capturing);
+                    final long duration = getDuration(requestParams);
+                    final CachedOutput output = new CachedOutput(success, capturing.getCaptured(), System.currentTimeMillis() + duration * 1000);
+                    if (success && output.bytes != null) {
+                        outputs.put(key, output);
+                    } else if (cached != null) {
+                        // Expired
+                        outputs.remove(key);
+                    }
+                    return output;
+                }
+            });
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e.toString());
+        }
+
+        if (ran[0]) {
+            return output.success;
+        }
+        if (output.bytes == null) {
+            // Too big to be shared
+            return serviceCallAction.execute(requestParams, userSession, out);
+        }
+        out.write(output.bytes);
+        return output.success;
+    }
+
+    /**
+     * @return the request's cacheDuration, within (0, ttl]
+     */
+    private long getDuration(final IParameterProvider requestParams) {
+        final long duration = requestParams.getLongParameter("cacheDuration", ttl);
+        return duration > 0 && duration < ttl ? duration : ttl;
+    }
+
+    private boolean isCached(final String actionPath, final IParameterProvider requestParams) {
+        return enabled && (cachedActions.contains(actionPath)
+                || "true".equalsIgnoreCase(requestParams.getStringParameter("cache", "false")));
+    }
+
+    /**
+     * @return the action, its generation, its parameters in name order and the
+     *         user's roles, sorted; and the user name too, unless the action
+     *         is listed as cached
+     */
+    private String getKey(final String actionPath, final IParameterProvider requestParams, final IPentahoSession userSession) {
+
+        final List<String> names = new ArrayList<String>();
+        for (final Iterator<?> it = requestParams.getParameterNames(); it.hasNext();) {
+            final String name = (String) it.next();
+            if (!IGNORED_PARAMETERS.contains(name)) {
+                names.add(name);
+            }
+        }
+        Collections.sort(names);
+
+        final StringBuilder key = new StringBuilder(actionPath);
+        key.append('\u0000').append(getGeneration(actionPath));
+        for (final String name : names) {
+            key.append('\u0000').append(name).append('=').append(requestParams.getStringParameter(name, ""));
+        }
+        key.append('\u0000').append(getRoles(userSession));
+        if (!cachedActions.contains(actionPath)) {
+            // Cached at the request's asking, whatever the action's output depends on
+            key.append('\u0000').append(userSession.getName());
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the user's roles, sorted
+     */
+    static String getRoles(final IPentahoSession userSession) {
+        final Object principalRoles = new SecurityParameterProvider(userSession).getParameter("principalRoles");
+        final List<String> roles = new ArrayList<String>();
+        if (principalRoles instanceof Collection) {
+            for (final Object role : (Collection<?>) principalRoles) {
+                roles.add(String.valueOf(role));
+            }
+        } else if (principalRoles instanceof Object[]) {
+            for (final Object role : (Object[]) principalRoles) {
+                roles.add(String.valueOf(role));
+            }
+        } else if (principalRoles != null) {
+            roles.add(principalRoles.toString());
+        }
+        Collections.sort(roles);
+        return roles.toString();
+    }
+
+    private synchronized long getGeneration(final String actionPath) {
+        final Long generation = generations.get(actionPath);
+        return generation != null ? generation.longValue() : 0;
+    }
+
+    /**
+     * Drops the cached outputs of an action. Its generation is only bumped,
+     * so outputs being computed meanwhile aren't kept either, if the action
+     * is cached at all: evicting made up paths leaves nothing behind.
+     */
+    public synchronized void evict(final String actionPath) {
+        final String action = normalizeAction(actionPath);
+        final String prefix = action + '\u0000';
+        boolean found = false;
+        for (final String key : outputs.getKeys()) {
+            if (key.startsWith(prefix)) {
+                outputs.remove(key);
+                found = true;
+            }
+        }
+        if (found || cachedActions.contains(action) || generations.containsKey(action)) {
+            generations.put(action, Long.valueOf(getGeneration(action) + 1));
+        }
+    }
+
+    /**
+     * Drops all cached outputs.
+     */
+    public void clear() {
+        outputs.clear();
+    }
+
+    public JSONObject getStatistics() throws JSONException {
+        final JSONObject json = new JSONObject();
+        json.put("enabled", enabled);
+        json.put("hits", outputs.getHits());
+        json.put("misses", outputs.getMisses());
+        json.put("entries", outputs.getEntryCount());
+        json.put("bytes", outputs.getSize());
+        json.put("coalesced", running.getShared());
+        return json;
+    }
+}
@@ -8,13 +8,15 @@ import java.nio.charset.Charset;
 import java.security.InvalidParameterException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.parsers.ParserConfigurationException;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.apache.commons.lang.StringUtils;
 
 import org.apache.commons.logging.Log;
@@ -28,10 +30,16 @@ import org.json.JSONObject;
 
 import org.pentaho.cdf.comments.CommentsEngine;
 import org.pentaho.cdf.export.Export;
+import org.pentaho.cdf.export.ExportColumnar;
 import org.pentaho.cdf.export.ExportCSV;
 import org.pentaho.cdf.export.ExportExcel;
+import org.pentaho.cdf.export.ExportNDJSON;
+import org.pentaho.cdf.export.ExportXLSX;
+import org.pentaho.cdf.export.ResultSetParser;
 import org.pentaho.cdf.localization.MessageBundlesHelper;
 import org.pentaho.cdf.storage.StorageEngine;
+import org.pentaho.cdf.utils.PluginHibernateUtil;
+import org.pentaho.cdf.utils.StaticFileServer;
 import org.pentaho.platform.api.engine.IActionSequenceResource;
 import org.pentaho.platform.api.engine.ILogger;
 import org.pentaho.platform.api.engine.IMimeTypeListener;
@@ -43,8 +51,10 @@ import org.pentaho.platform.api.repository.IContentItem;
 import org.pentaho.platform.api.repository.ISolutionRepository;
 import org.pentaho.platform.engine.core.solution.ActionInfo;
 import org.pentaho.platform.engine.core.system.PentahoSystem;
+import org.pentaho.platform.engine.security.SecurityHelper;
 import org.pentaho.platform.engine.services.actionsequence.ActionResource;
 import org.pentaho.platform.engine.services.solution.BaseContentGenerator;
+import org.pentaho.platform.util.StringUtil;
 import org.pentaho.platform.util.messages.LocaleHelper;
 import org.pentaho.platform.util.web.MimeHelper;
 import org.pentaho.platform.util.xml.dom4j.XmlDom4JHelper;
@@ -78,9 +88,12 @@ public class CdfContentGenerator extends BaseContentGenerator {
     private static final String JSON_SOLUTION = "/JSONSolution"; //$NON-NLS-1$
     private static final String GET_CDF_RESOURCE = "/GetCDFResource"; //$NON-NLS-1$
     private static final String EXPORT = "/Export"; //$NON-NLS-1$
+    private static final String EXPORT_JOB = "/ExportJob"; //$NON-NLS-1$
     private static final String SETTINGS = "/Settings"; //$NON-NLS-1$
     private static final String CALLACTION = "/CallAction"; //$NON-NLS-1$
     private static final String CLEAR_CACHE = "/ClearCache"; //$NON-NLS-1$
+    private static final String CACHE_STATS = "/CacheStats"; //$NON-NLS-1$
+    private static final String ACTION_STATS = "/ActionStats"; //$NON-NLS-1$
     private static final String COMMENTS = "/Comments"; //$NON-NLS-1$
     private static final String STORAGE = "/Storage"; //$NON-NLS-1$
     private static final String GETHEADERS = "/GetHeaders"; //$NON-NLS-1$
@@ -91,8 +104,14 @@ public class CdfContentGenerator extends BaseContentGenerator {
     private static final String MIME_PLAIN = "text/plain";
     private static final String MIME_CSV = "text/csv";
     private static final String MIME_XLS = "application/vnd.ms-excel";
+    private static final String MIME_XLSX = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+    private static final String MIME_NDJSON = "application/x-ndjson";
+    private static final String MIME_BINARY = "application/octet-stream";
     // CDF Resource Relative URL
     private static final String RELATIVE_URL_TAG = "@RELATIVE_URL@";
+    private static final String I18N_TAG = "CDF.i18n(\"";
+    private static final String I18N_TAG_END = "\")";
+    private static final int EXPORT_MEMORY_THRESHOLD = 1024 * 1024;
     public String RELATIVE_URL;
     private Packager packager;
     public static String ENCODING = "UTF-8";
@@ -196,6 +215,8 @@ public class CdfContentGenerator extends BaseContentGenerator {
             renderHtml(out, requestParams);
         } else if (urlPath.equals(EXPORT)) {
             exportFile(requestParams, out);
+        } else if (urlPath.equals(EXPORT_JOB)) {
+            exportJob(requestParams, out);
         } else if (urlPath.equals(SETTINGS)) {
             cdfSettings(requestParams, out);
         } else if (urlPath.equals(CALLACTION)) {
@@ -208,6 +229,10 @@ public class CdfContentGenerator extends BaseContentGenerator {
             generateContext(requestParams, out);
         } else if (urlPath.equals(CLEAR_CACHE)) {
             clearCache(requestParams, out);
+        } else if (urlPath.equals(CACHE_STATS)) {
+            cacheStats(requestParams, out);
+        } else if (urlPath.equals(ACTION_STATS)) {
+            actionStats(requestParams, out);
         } else if (urlPath.equals(GETHEADERS)) {
             if (!payload.equals("")) {
                 getHeaders(payload, requestParams, out);
@@ -236,6 +261,11 @@ public class CdfContentGenerator extends BaseContentGenerator {
         s.append("\n<script language=\"javascript\" type=\"text/javascript\">\n");
         s.append("  Dashboards.storage = ");
         s.append(StorageEngine.getInstance().read(requestParams, userSession)).append("\n");
+        // Only the keys of the dashboard being rendered
+        final String namespace = StorageEngine.getNamespace(requestParams);
+        s.append("  Dashboards.storageNamespace = ").append(JSONObject.quote(namespace)).append(";\n");
+        s.append("  Dashboards.keyStorage = ");
+        s.append(StorageEngine.getInstance().readKeys(userSession.getName(), namespace)).append("\n");
         s.append("</script>\n");
         // setResponseHeaders(MIME_PLAIN,0,null);
         out.write(s.toString().getBytes(ENCODING));
@@ -284,7 +314,16 @@ public class CdfContentGenerator extends BaseContentGenerator {
         final String mode = requestParams.getStringParameter("mode", null); //$NON-NLS-1$
         final String contextPath = ((HttpServletRequest) parameterProviders.get("path").getParameter("httprequest")).getContextPath();
         final NavigateComponent nav = new NavigateComponent(userSession, contextPath);
-        final String json = nav.getNavigationElements(mode, solution, path);
+        final String json;
+        if ("folder".equals(mode)) { //$NON-NLS-1$
+            // Only the folder mode pages
+            final int depth = getIntParameter(requestParams, "depth", 1); //$NON-NLS-1$
+            final int cursor = getIntParameter(requestParams, "cursor", 0); //$NON-NLS-1$
+            final int pageSize = getIntParameter(requestParams, "pageSize", 100); //$NON-NLS-1$
+            json = nav.getNavigationElements(mode, solution, path, depth, cursor, pageSize);
+        } else {
+            json = nav.getNavigationElements(mode, solution, path);
+        }
 
         final PrintWriter pw = new PrintWriter(out);
 
@@ -300,6 +339,22 @@ public class CdfContentGenerator extends BaseContentGenerator {
         pw.flush();
     }
 
+    /**
+     * @return the parameter as an int, or defaultValue when it's missing or
+     *         not a number
+     */
+    private static int getIntParameter(final IParameterProvider requestParams, final String name, final int defaultValue) {
+        final String value = requestParams.getStringParameter(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     private void getCDFResource(final String urlPath, final IContentItem contentItem, final OutputStream out, final IParameterProvider requestParams) throws Exception {
         if (requestParams == null) {
             error(Messages.getErrorString("CdfContentGenerator.ERROR_0004_NO_REQUEST_PARAMS")); //$NON-NLS-1$
@@ -437,6 +492,12 @@ public class CdfContentGenerator extends BaseContentGenerator {
 
         final String dashboardTemplate = "template-dashboard" + template + ".html"; //$NON-NLS-1$
 
+        // Merge dashboard related message file with global message file and save it in the dashboard cache
+        MessageBundlesHelper mbh = new MessageBundlesHelper(solution, path, dashboardsMessagesBaseFilename);
+        mbh.saveI18NMessageFilesToCache();
+        // Tags are translated here rather than in the browser, when enabled
+        final Map<String, String> i18nMessages = isServerSideI18n() ? mbh.getTranslations() : null;
+
         final IUITemplater templater = PentahoSystem.get(IUITemplater.class, userSession);
         ArrayList<String> i18nTagsList = new ArrayList<String>();
         if (templater != null) {
@@ -450,7 +511,7 @@ public class CdfContentGenerator extends BaseContentGenerator {
             String templateContent = repository.getResourceAsString(templateResource, ISolutionRepository.ACTION_EXECUTE);
             // Process i18n on dashboard outer template
             templateContent = updateUserLanguageKey(templateContent);
-            templateContent = processi18nTags(templateContent, i18nTagsList);
+            templateContent = processi18nTags(templateContent, i18nTagsList, i18nMessages);
             // Process i18n on dashboard outer template - end
             final String[] sections = templater.breakTemplateString(templateContent, "", userSession); //$NON-NLS-1$
             if (sections != null && sections.length > 0) {
@@ -473,21 +534,18 @@ public class CdfContentGenerator extends BaseContentGenerator {
         //BufferedReader reader = new BufferedReader(new InputStreamReader(is));
         BufferedReader reader = new BufferedReader(new InputStreamReader(is, Charset.forName(LocaleHelper.getSystemEncoding())));
 
-        StringBuilder sb = new StringBuilder();
+        StringBuilder body = new StringBuilder();
         String line = null;
         while ((line = reader.readLine()) != null) {
-            // Process i18n for each line of the dashboard output
-            line = processi18nTags(line, i18nTagsList);
-            // Process i18n - end
-            sb.append(line).append("\n");
+            body.append(line).append("\n");
         }
         is.close();
+        // Process i18n for the whole dashboard output at once
+        StringBuilder sb = new StringBuilder(body.length());
+        processi18nTags(body.toString(), sb, i18nTagsList, i18nMessages);
         dashboardContent = sb.toString();
 
         String messageSetPath = null;
-        // Merge dashboard related message file with global message file and save it in the dashboard cache
-        MessageBundlesHelper mbh = new MessageBundlesHelper(solution, path, dashboardsMessagesBaseFilename);
-        mbh.saveI18NMessageFilesToCache();
         messageSetPath = mbh.getMessageFilesCacheUrl() + "/";
 
         // If dashboard specific files aren't specified set message filename in cache to the global messages file filename
@@ -499,6 +557,8 @@ public class CdfContentGenerator extends BaseContentGenerator {
         intro = intro.replaceAll("\\{body-tag-unload\\}", "");
         intro = intro.replaceAll("#\\{GLOBAL_MESSAGE_SET_NAME\\}", dashboardsMessagesBaseFilename);
         intro = intro.replaceAll("#\\{GLOBAL_MESSAGE_SET_PATH\\}", messageSetPath);
+        // The bundles come with the page, so the browser doesn't have to load them
+        intro = intro.replaceAll("#\\{GLOBAL_MESSAGE_SET_MESSAGES\\}", Matcher.quoteReplacement(mbh.getMessagesJSON()));
         intro = intro.replaceAll("#\\{GLOBAL_MESSAGE_SET\\}", buildMessageSetCode(i18nTagsList));
 
         /************************************************/
@@ -535,31 +595,77 @@ public class CdfContentGenerator extends BaseContentGenerator {
         return messageCodeSet.toString();
     }
 
-    private String processi18nTags(String content, ArrayList<String> tagsList) {
-        String tagPattern = "CDF.i18n\\(\"";
-        String[] test = content.split(tagPattern);
-        if (test.length == 1) {
+    private boolean isServerSideI18n() {
+        final IPluginResourceLoader resLoader = PentahoSystem.get(IPluginResourceLoader.class, null);
+        return "true".equalsIgnoreCase(resLoader.getPluginSetting(CdfContentGenerator.class, "settings/i18n/server-side"));
+    }
+
+    /**
+     * Replaces the CDF.i18n("key") tags with spans the browser fills in with
+     * the translation of key, adding the keys to tagsList. When translations
+     * are given, tags whose key they have get the translation in their span
+     * instead, and aren't added to tagsList.
+     */
+    private String processi18nTags(String content, List<String> tagsList, Map<String, String> translations) {
+        if (content.indexOf(I18N_TAG) < 0) {
             return content;
         }
-        StringBuilder resBuffer = new StringBuilder();
-        int i;
-        String tagValue;
-        resBuffer.append(test[0]);
-        for (i = 1; i < test.length; i++) {
-
-            // First tag is processed differently that other because is the only case where I don't
-            // have key in first position
-            resBuffer.append("<span id=\"");
-            if (i != 0) {
-                // Right part of the string with the value of the tag herein
-                tagValue = test[i].substring(0, test[i].indexOf("\")"));
+        StringBuilder resBuffer = new StringBuilder(content.length());
+        processi18nTags(content, resBuffer, tagsList, translations);
+        return resBuffer.toString();
+    }
+
+    /**
+     * Copies content to resBuffer, replacing each CDF.i18n("key") tag with the
+     * span its message goes into: the translation when there's one, otherwise
+     * the key is added to tagsList for the browser to fill it. One pass over
+     * content, tags are found with indexOf. A tag has to end on its line, as
+     * when lines were processed one at a time; one that doesn't is copied as
+     * it is, up to the end of its line.
+     */
+    private void processi18nTags(String content, StringBuilder resBuffer, List<String> tagsList, Map<String, String> translations) {
+        int start = 0;
+        int tag;
+        while ((tag = content.indexOf(I18N_TAG, start)) >= 0) {
+            int keyStart = tag + I18N_TAG.length();
+            int lineEnd = content.indexOf('\n', keyStart);
+            if (lineEnd < 0) {
+                lineEnd = content.length();
+            }
+            int keyEnd = findTagEnd(content, keyStart, lineEnd);
+            if (keyEnd < 0) {
+                resBuffer.append(content, start, lineEnd);
+                start = lineEnd;
+                continue;
+            }
+            resBuffer.append(content, start, tag);
+            String tagValue = content.substring(keyStart, keyEnd);
+            final String translation = translations != null ? translations.get(tagValue) : null;
+            if (translation == null) {
                 tagsList.add(tagValue);
-                resBuffer.append(updateSelectorName(tagValue));
-                resBuffer.append("\"></span>");
-                resBuffer.append(test[i].substring(test[i].indexOf("\")") + 2, test[i].length()));
             }
+            resBuffer.append("<span id=\"").append(updateSelectorName(tagValue)).append("\">");
+            if (translation != null) {
+                // Markup, as jQuery.html() would take it
+                resBuffer.append(translation);
+            }
+            resBuffer.append("</span>");
+            start = keyEnd + I18N_TAG_END.length();
         }
-        return resBuffer.toString();
+        resBuffer.append(content, start, content.length());
+    }
+
+    /**
+     * @return where the first I18N_TAG_END between from and lineEnd starts, -1
+     *         if there's none
+     */
+    private static int findTagEnd(String content, int from, int lineEnd) {
+        for (int i = from; i + I18N_TAG_END.length() <= lineEnd; i++) {
+            if (content.startsWith(I18N_TAG_END, i)) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     private String updateSelectorName(String name) {
@@ -584,32 +690,200 @@ public class CdfContentGenerator extends BaseContentGenerator {
 
         try {
 
-            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if ("true".equalsIgnoreCase(requestParams.getStringParameter("async", "false"))) {
+                submitExportJob(requestParams, output);
+                return;
+            }
 
-            final ServiceCallAction serviceCallAction = ServiceCallAction.getInstance();
-            if (serviceCallAction.execute(requestParams, userSession, out)) {
+            final String exportType = requestParams.getStringParameter("exportType", "excel");
+            final HttpServletResponse response = (HttpServletResponse) parameterProviders.get("path").getParameter("httpresponse");
+
+            // The export is held until the action is done, in memory and then in a
+            // temporary file, so a failure is answered with an error, not a cut file
+            final File spoolFile = File.createTempFile("cdf-export", ".tmp");
+            final DeferredFileOutputStream spool = new DeferredFileOutputStream(EXPORT_MEMORY_THRESHOLD, spoolFile);
+            GZIPOutputStream gzip = null;
+            try {
+                // Compress on the wire when enabled and the client takes it
+                if (isGzipExport()) {
+                    gzip = new GZIPOutputStream(spool, 65536);
+                }
+                final OutputStream exportOutput = gzip != null ? gzip : spool;
 
-                final String exportType = requestParams.getStringParameter("exportType", "excel");
+                final Export export = createExport(exportType, exportOutput);
 
-                Export export;
+                // The result set goes straight from the action to the export, a row at a time
+                final ServiceCallAction serviceCallAction = ServiceCallAction.getInstance();
+                final boolean success = serviceCallAction.stream(requestParams, userSession, new ResultSetParser(export));
+                if (gzip != null) {
+                    gzip.finish();
+                }
+                spool.close();
 
-                if (exportType.equals("csv")) {
-                    export = new ExportCSV(output);
-                    setResponseHeaders(MIME_CSV, 0, "export" + export.getExtension());
-                } else {
-                    export = new ExportExcel(output);
-                    setResponseHeaders(MIME_XLS, 0, "export" + export.getExtension());
+                if (!success) {
+                    logger.error("Export failed running " + ServiceCallAction.getActionPath(requestParams));
+                    response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    return;
                 }
 
-                export.exportFile(new JSONObject(out.toString()));
+                setResponseHeaders(getExportMimeType(exportType), 0, "export" + export.getExtension());
+                if (gzip != null) {
+                    response.setHeader("Content-Encoding", "gzip");
+                }
+                if (spool.isInMemory()) {
+                    output.write(spool.getData());
+                } else {
+                    final InputStream in = new FileInputStream(spoolFile);
+                    try {
+                        IOUtils.copy(in, output);
+                    } finally {
+                        in.close();
+                    }
+                }
+            } finally {
+                // The spool file can't be deleted while it's open everywhere
+                IOUtils.closeQuietly(gzip);
+                IOUtils.closeQuietly(spool);
+                spoolFile.delete();
             }
 
         } catch (IOException e) {
             logger.error("IOException  exporting file", e);
+        }
+
+    }
+
+    /**
+     * @return the export for the given exportType, Excel when unknown
+     */
+    static Export createExport(final String exportType, final OutputStream out) throws IOException {
+        if (exportType.equals("csv")) {
+            return new ExportCSV(out);
+        } else if (exportType.equals("xlsx")) {
+            return new ExportXLSX(out);
+        } else if (exportType.equals("ndjson")) {
+            return new ExportNDJSON(out);
+        } else if (exportType.equals("columnar")) {
+            return new ExportColumnar(out);
+        } else {
+            return new ExportExcel(out);
+        }
+    }
+
+    private static String getExportMimeType(final String exportType) {
+        if (exportType.equals("csv")) {
+            return MIME_CSV;
+        } else if (exportType.equals("xlsx")) {
+            return MIME_XLSX;
+        } else if (exportType.equals("ndjson")) {
+            return MIME_NDJSON;
+        } else if (exportType.equals("columnar")) {
+            return MIME_BINARY;
+        } else {
+            return MIME_XLS;
+        }
+    }
+
+    /**
+     * /Export with async=true: queues the export as a background job and
+     * answers with its status, to be followed with /ExportJob.
+     */
+    private void submitExportJob(final IParameterProvider requestParams, final OutputStream out) throws IOException {
+
+        JSONObject result;
+        try {
+            result = ExportJobs.getInstance().submit(requestParams, userSession).toJSON();
+        } catch (InvalidCdfOperationException e) {
+            result = new JSONObject();
+            putError(result, e.getMessage());
         } catch (JSONException e) {
-            logger.error("JSONException exporting file", e);
+            throw new IOException(e.getMessage());
         }
+        out.write(result.toString().getBytes(ENCODING));
+    }
 
+    /**
+     * Background exports started with /Export?async=true. The method parameter
+     * is one of:
+     * <p/>
+     * - status: the status of the job given in the job parameter, with how
+     * many rows and bytes were exported so far
+     * - download: the file of a done job, which can be downloaded until the
+     * job expires
+     * - cancel: stops the job and deletes its file
+     * - list: the status of all the user's jobs
+     */
+    private void exportJob(final IParameterProvider requestParams, final OutputStream out) throws Exception {
+
+        final String method = requestParams.getStringParameter("method", "status");
+        final ExportJobs exportJobs = ExportJobs.getInstance();
+
+        if (method.equals("list")) {
+            out.write(exportJobs.listJobs(userSession).toString().getBytes(ENCODING));
+            return;
+        }
+
+        final ExportJobs.Job job = exportJobs.getJob(requestParams.getStringParameter("job", null), userSession);
+        final JSONObject result;
+        if (job == null) {
+            result = new JSONObject();
+            putError(result, "Unknown export job");
+        } else if (method.equals("download")) {
+            final File file = job.getFile();
+            if (file != null) {
+                downloadExport(job, file, out);
+                return;
+            }
+            result = job.toJSON();
+            putError(result, "Export job is " + job.getStatus());
+        } else if (method.equals("cancel")) {
+            exportJobs.cancel(job);
+            result = job.toJSON();
+        } else {
+            result = job.toJSON();
+        }
+
+        out.write(result.toString().getBytes(ENCODING));
+    }
+
+    private void downloadExport(final ExportJobs.Job job, final File file, final OutputStream output) throws IOException {
+
+        final GZIPOutputStream gzip = isGzipExport() ? new GZIPOutputStream(output, 65536) : null;
+        setResponseHeaders(getExportMimeType(job.getExportType()), 0, "export" + job.getExtension());
+        if (gzip != null) {
+            final HttpServletResponse response = (HttpServletResponse) parameterProviders.get("path").getParameter("httpresponse");
+            response.setHeader("Content-Encoding", "gzip");
+        }
+
+        final InputStream in = new FileInputStream(file);
+        try {
+            IOUtils.copy(in, gzip != null ? gzip : output);
+        } finally {
+            in.close();
+        }
+        if (gzip != null) {
+            gzip.finish();
+        }
+    }
+
+    private static void putError(final JSONObject json, final String message) {
+        try {
+            json.put("error", message);
+        } catch (JSONException e) {
+            // Not with a non null key
+        }
+    }
+
+    private boolean isGzipExport() {
+        final IPluginResourceLoader resLoader = PentahoSystem.get(IPluginResourceLoader.class, null);
+        if (!"true".equalsIgnoreCase(resLoader.getPluginSetting(CdfContentGenerator.class, "settings/export/gzip"))) {
+            return false;
+        }
+        final IParameterProvider pathParams = parameterProviders.get("path");
+        final HttpServletRequest request = pathParams != null ? (HttpServletRequest) pathParams.getParameter("httprequest") : null;
+        final String acceptEncoding = request != null ? request.getHeader("Accept-Encoding") : null;
+        return acceptEncoding != null && acceptEncoding.indexOf("gzip") >= 0
+                && pathParams.getParameter("httpresponse") != null;
     }
 
     private void cdfSettings(final IParameterProvider requestParams, final OutputStream out) {
@@ -627,10 +901,10 @@ public class CdfContentGenerator extends BaseContentGenerator {
         }
     }
 
-    private void callAction(final IParameterProvider requestParams, final OutputStream out) {
+    private void callAction(final IParameterProvider requestParams, final OutputStream out) throws IOException {
 
-        final ServiceCallAction serviceCallAction = ServiceCallAction.getInstance();
-        serviceCallAction.execute(requestParams, userSession, out);
+        // Runs the action unless it's cached
+        CallActionCache.getInstance().execute(requestParams, userSession, out);
     }
 
     private void processComments(final IParameterProvider requestParams, final OutputStream out) throws JSONException {
@@ -740,16 +1014,8 @@ public class CdfContentGenerator extends BaseContentGenerator {
     public void getContent(final String fileName, final OutputStream out, final ILogger logger) throws Exception {
 
         // write out the scripts
-        // TODO support caching
         final String path = PentahoSystem.getApplicationContext().getSolutionPath("system/" + PLUGIN_NAME + fileName); //$NON-NLS-1$ //$NON-NLS-2$
-        final File file = new File(path);
-
-        final InputStream in = FileUtils.openInputStream(file);
-        try {
-            IOUtils.copy(in, out);
-        } finally {
-            IOUtils.closeQuietly(in);
-        }
+        serveFile(new File(path), out);
     }
 
     public void getSolutionFile(final String resourcePath, final OutputStream out, final ILogger logger) throws Exception {
@@ -762,7 +1028,16 @@ public class CdfContentGenerator extends BaseContentGenerator {
             // We can't provide this type of file
             throw new SecurityException("Not allowed");
         }
+        if (StringUtil.doesPathContainParentPathSegment(resourcePath)) {
+            throw new SecurityException("Not allowed");
+        }
         final ISolutionRepository repository = PentahoSystem.get(ISolutionRepository.class, userSession);
+        final File file = new File(PentahoSystem.getApplicationContext().getSolutionPath(resourcePath));
+        if (file.isFile() && repository.getSolutionFile(resourcePath, ISolutionRepository.ACTION_EXECUTE) != null) {
+            serveFile(file, out);
+            return;
+        }
+        // Not on disk, or not allowed: the repository knows
         final InputStream in = repository.getResourceInputStream(resourcePath, true, ISolutionRepository.ACTION_EXECUTE);
         try {
             IOUtils.copy(in, out);
@@ -771,6 +1046,17 @@ public class CdfContentGenerator extends BaseContentGenerator {
         }
     }
 
+    /**
+     * Writes a file with its length and validators, or just a 304 when the
+     * browser's copy is current.
+     */
+    private void serveFile(final File file, final OutputStream out) throws IOException {
+        final IParameterProvider pathParams = parameterProviders != null ? parameterProviders.get("path") : null; //$NON-NLS-1$
+        final HttpServletRequest request = pathParams != null ? (HttpServletRequest) pathParams.getParameter("httprequest") : null;
+        final HttpServletResponse response = pathParams != null ? (HttpServletResponse) pathParams.getParameter("httpresponse") : null;
+        StaticFileServer.serve(file, request, response, out);
+    }
+
     private void setResponseHeaders(final String mimeType, final int cacheDuration, final String attachmentName) {
         // Make sure we have the correct mime type
         final HttpServletResponse response = (HttpServletResponse) parameterProviders.get("path").getParameter("httpresponse");
@@ -1038,10 +1324,57 @@ public class CdfContentGenerator extends BaseContentGenerator {
 
     public void clearCache(final IParameterProvider requestParams, final OutputStream out) {
         try {
+            // callAction=solution/path/action only drops that action's outputs
+            final String action = requestParams.getStringParameter("callAction", null);
+            if (action != null) {
+                if (!checkAdministrator()) {
+                    return;
+                }
+                CallActionCache.getInstance().evict(action);
+                out.write("Cache cleared".getBytes("utf-8"));
+                return;
+            }
             DashboardContext.clearCache();
+            // The storage, comments and action caches are shared by all users
+            if (SecurityHelper.isPentahoAdministrator(userSession)) {
+                PluginHibernateUtil.evictCaches();
+                CallActionCache.getInstance().clear();
+            }
             out.write("Cache cleared".getBytes("utf-8"));
         } catch (IOException e) {
             logger.error("failed to clear CDFcache");
         }
     }
+
+    public void cacheStats(final IParameterProvider requestParams, final OutputStream out) throws Exception {
+        if (!checkAdministrator()) {
+            return;
+        }
+        final JSONObject statistics = PluginHibernateUtil.getCacheStatistics();
+        statistics.put("callAction", CallActionCache.getInstance().getStatistics());
+        out.write(statistics.toString(2).getBytes(ENCODING));
+    }
+
+    public void actionStats(final IParameterProvider requestParams, final OutputStream out) throws Exception {
+        if (!checkAdministrator()) {
+            return;
+        }
+        final JSONObject statistics = ServiceCallAction.getInstance().getStatistics();
+        // Calls of the comments and storage actions
+        statistics.put("comments", CommentsEngine.getActionStatistics());
+        statistics.put("storage", StorageEngine.getActionStatistics());
+        out.write(statistics.toString(2).getBytes(ENCODING));
+    }
+
+    /**
+     * @return true if the user is an administrator, otherwise answers 403
+     */
+    private boolean checkAdministrator() throws IOException {
+        if (SecurityHelper.isPentahoAdministrator(userSession)) {
+            return true;
+        }
+        final HttpServletResponse response = (HttpServletResponse) parameterProviders.get("path").getParameter("httpresponse");
+        response.sendError(HttpServletResponse.SC_FORBIDDEN);
+        return false;
+    }
 }
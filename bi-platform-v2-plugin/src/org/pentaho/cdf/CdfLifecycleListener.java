@@ -1,5 +1,6 @@
 package org.pentaho.cdf;
 
+import org.pentaho.cdf.storage.StorageEngine;
 import org.pentaho.cdf.utils.PluginHibernateUtil;
 import org.pentaho.platform.api.engine.IPluginLifecycleListener;
 import org.pentaho.platform.api.engine.PluginLifecycleException;
@@ -38,5 +39,9 @@ public class CdfLifecycleListener implements IPluginLifecycleListener
 
   public void unLoaded() throws PluginLifecycleException
   {
+    // Don't lose storage still waiting in the write-behind buffer
+    StorageEngine.shutdownInstance();
+    // Nor leave export files or workers behind
+    ExportJobs.shutdownInstance();
   }
 }
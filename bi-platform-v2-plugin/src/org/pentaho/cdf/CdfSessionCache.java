@@ -1,5 +1,6 @@
 package org.pentaho.cdf;
 
+import org.pentaho.cdf.storage.StorageCache;
 import org.pentaho.platform.api.engine.ICacheManager;
 import org.pentaho.platform.api.engine.ILogoutListener;
 import org.pentaho.platform.api.engine.IPentahoSession;
@@ -69,6 +70,9 @@ public class CdfSessionCache implements ILogoutListener {
   
   public void onLogout(final IPentahoSession session) {
     cacheManager.removeRegionCache(getCdfRegion(session));
+    if (session.getName() != null) {
+      StorageCache.getInstance().invalidateUser(session.getName());
+    }
   }
   
     
@@ -12,9 +12,12 @@ import java.util.Calendar;
 
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.commons.logging.Log;
@@ -25,8 +28,10 @@ import org.dom4j.Node;
 import org.dom4j.io.SAXReader;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.pentaho.cdf.utils.SingleFlight;
 import org.pentaho.platform.api.engine.IParameterProvider;
 import org.pentaho.platform.api.engine.IPentahoSession;
+import org.pentaho.platform.api.engine.IPluginResourceLoader;
 import org.pentaho.platform.api.engine.IUserDetailsRoleListService;
 import org.pentaho.platform.api.repository.ISolutionRepository;
 import org.pentaho.platform.engine.core.system.PentahoSystem;
@@ -48,6 +53,9 @@ public class DashboardContext {
     protected IPentahoSession userSession;
     private static final Log logger = LogFactory.getLog(DashboardContext.class);
     private static Document repositoryCache;
+    /* Users opening the same dashboard at once share its auto-include queries */
+    private static final SingleFlight<String, String> autoIncludeQueries = new SingleFlight<String, String>();
+    private static Set<String> sharedQueries;
 
     public DashboardContext(IPentahoSession userSession) {
         logger.debug("Creating Context for user " + userSession.getName());
@@ -165,12 +173,7 @@ public class DashboardContext {
                     List<String> ids = listQueries(path);
                     String idPattern = (String) cda.selectObject("string(ids)");
                     for (String id : ids) {
-                        Map<String, Object> params = new HashMap<String, Object>();
-                        params.put("dataAccessId", id);
-                        params.put("path", path);
-                        logger.info("[Timing] Executing autoinclude query: " + (new SimpleDateFormat("HH:mm:ss.SSS")).format(new Date()));
-                        String reply = InterPluginComms.callPlugin(InterPluginComms.Plugin.CDA, "doQuery", params, true);
-                        logger.info("[Timing] Done executing autoinclude query: " + (new SimpleDateFormat("HH:mm:ss.SSS")).format(new Date()));
+                        String reply = doAutoIncludeQuery(path, id);
                         try {
                             queries.put(id, new JSONObject(reply));
                         } catch (JSONException e) {
@@ -186,6 +189,57 @@ public class DashboardContext {
         return queries;
     }
 
+    /**
+     * Runs an auto-include query, or waits for the same query already running
+     * and takes its reply: one of any user with the same roles if its CDA file
+     * is listed in settings/auto-include/shared-queries, otherwise one of the
+     * same user, as queries can depend on more than roles.
+     */
+    private String doAutoIncludeQuery(final String path, final String id) {
+        String key = path + '\u0000' + id + '\u0000' + CallActionCache.getRoles(userSession);
+        if (!getSharedQueries().contains(path.replaceAll("/+", "/").replaceAll("^/", ""))) {
+            key += '\u0000' + userSession.getName();
+        }
+        try {
+            return autoIncludeQueries.execute(key, new Callable<String>() {
+
+                public String call() {
+                    Map<String, Object> params = new HashMap<String, Object>();
+                    params.put("dataAccessId", id);
+                    params.put("path", path);
+                    logger.info("[Timing] Executing autoinclude query: " + (new SimpleDateFormat("HH:mm:ss.SSS")).format(new Date()));
+                    String reply = InterPluginComms.callPlugin(InterPluginComms.Plugin.CDA, "doQuery", params, true);
+                    logger.info("[Timing] Done executing autoinclude query: " + (new SimpleDateFormat("HH:mm:ss.SSS")).format(new Date()));
+                    return reply;
+                }
+            });
+        } catch (Exception e) {
+            logger.error("Failed to run auto-include query " + id + " of " + path, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the CDA files whose auto-include queries users with the same
+     *         roles share
+     */
+    private static synchronized Set<String> getSharedQueries() {
+        if (sharedQueries == null) {
+            sharedQueries = new HashSet<String>();
+            IPluginResourceLoader resLoader = PentahoSystem.get(IPluginResourceLoader.class, null);
+            String files = resLoader.getPluginSetting(DashboardContext.class, "settings/auto-include/shared-queries");
+            if (files != null) {
+                for (String file : files.split(",")) {
+                    file = file.trim().replaceAll("/+", "/").replaceAll("^/", "");
+                    if (file.length() > 0) {
+                        sharedQueries.add(file);
+                    }
+                }
+            }
+        }
+        return sharedQueries;
+    }
+
     private boolean canInclude(String path, List<Node> rules, Matcher matcher) {
         boolean canInclude = false;
         logger.info("[Timing] Testing inclusion rule: " + (new SimpleDateFormat("HH:mm:ss.SSS")).format(new Date()));
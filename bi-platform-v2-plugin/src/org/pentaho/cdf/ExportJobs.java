@@ -0,0 +1,479 @@
+package org.pentaho.cdf;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.pentaho.cdf.export.Export;
+import org.pentaho.cdf.export.ResultSetParser;
+import org.pentaho.platform.api.engine.IParameterProvider;
+import org.pentaho.platform.api.engine.IPentahoSession;
+import org.pentaho.platform.api.engine.IPluginResourceLoader;
+import org.pentaho.platform.engine.core.solution.SimpleParameterProvider;
+import org.pentaho.platform.engine.core.system.PentahoSessionHolder;
+import org.pentaho.platform.engine.core.system.PentahoSystem;
+import org.pentaho.platform.util.messages.LocaleHelper;
+
+/**
+ * Exports run in the background, so that big ones neither hold a request
+ * thread nor depend on the request outliving proxy timeouts. A job runs the
+ * action into an export written to a temporary file; the client polls its
+ * status and downloads the file once it's done.
+ * <p/>
+ * Jobs run on a fixed pool of workers, with a bounded queue and a limit of
+ * unfinished jobs per user. Finished jobs, and their files, are dropped
+ * settings/export/jobs/expiry milliseconds after they end.
+ */
+public class ExportJobs {
+
+    private static final Log logger = LogFactory.getLog(ExportJobs.class);
+    private static ExportJobs instance;
+    private static final int DEFAULT_WORKERS = 2;
+    private static final int DEFAULT_QUEUE_SIZE = 50;
+    private static final int DEFAULT_JOBS_PER_USER = 2;
+    private static final long DEFAULT_EXPIRY = 3600000;
+    private static final long MAX_SWEEP_INTERVAL = 60000;
+    private static final int BUFFER_SIZE = 65536;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService sweeper;
+    private final int jobsPerUser;
+    private final long expiry;
+
+    public enum Status {
+
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED;
+
+        boolean isFinished() {
+            return this != QUEUED && this != RUNNING;
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * One export. Its status and progress are written by the worker and read
+     * by the requests polling it; status changes are made holding the job's
+     * lock, so a cancel is never lost to the job ending.
+     */
+    public static class Job implements Runnable {
+
+        private final String id = UUID.randomUUID().toString();
+        private final String user;
+        private final String exportType;
+        private final IParameterProvider parameters;
+        private final IPentahoSession userSession;
+        private final Locale locale;
+        private final Date created = new Date();
+        private volatile Status status = Status.QUEUED;
+        private volatile long finished;
+        private volatile boolean cancelled;
+        private volatile Export export;
+        private volatile long bytes;
+        private volatile String error;
+        private File file;
+        private String extension;
+        private volatile Future<?> future;
+
+        private Job(final IParameterProvider requestParams, final IPentahoSession userSession) {
+            this.user = userSession.getName();
+            this.exportType = requestParams.getStringParameter("exportType", "excel");
+            this.userSession = userSession;
+            this.locale = LocaleHelper.getLocale();
+
+            // The request's parameters don't outlive it
+            final Map<String, Object> copy = new HashMap<String, Object>();
+            final Iterator<?> names = requestParams.getParameterNames();
+            while (names.hasNext()) {
+                final String name = (String) names.next();
+                copy.put(name, requestParams.getParameter(name));
+            }
+            this.parameters = new SimpleParameterProvider(copy);
+        }
+
+        public void run() {
+
+            if (!start()) {
+                return;
+            }
+            // The action runs as the user who asked for the export, as it would in the request
+            PentahoSessionHolder.setSession(userSession);
+            LocaleHelper.setLocale(locale);
+            JobOutputStream out = null;
+            try {
+                file = File.createTempFile("cdf-export-", null);
+                out = new JobOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+                final Export export = CdfContentGenerator.createExport(exportType, out);
+                extension = export.getExtension();
+                this.export = export;
+
+                final boolean success = ServiceCallAction.getInstance().stream(parameters, userSession, new ResultSetParser(export));
+                // close() would swallow a failing flush
+                out.flush();
+                out.close();
+                if (out.failure != null) {
+                    // The action may well have swallowed it
+                    throw out.failure;
+                }
+                out = null;
+
+                if (!success) {
+                    end(Status.FAILED, "The action didn't run successfully");
+                } else {
+                    end(Status.DONE, null);
+                }
+            } catch (Exception e) {
+                logger.error("Error running export job " + id, e);
+                end(Status.FAILED, e.getMessage());
+            } finally {
+                PentahoSessionHolder.removeSession();
+                LocaleHelper.setLocale(null);
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // Failing already
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return false if the job was cancelled before it started
+         */
+        private synchronized boolean start() {
+            if (cancelled) {
+                return false;
+            }
+            status = Status.RUNNING;
+            return true;
+        }
+
+        /**
+         * Ends the job, as cancelled whatever the outcome if it was cancelled
+         * meanwhile; a cancelled job stays so.
+         */
+        private synchronized void end(Status status, final String error) {
+            if (this.status == Status.CANCELLED) {
+                return;
+            }
+            if (cancelled) {
+                status = Status.CANCELLED;
+            }
+            this.error = status == Status.CANCELLED ? null : error;
+            if (status != Status.DONE) {
+                deleteFile();
+            }
+            finished = System.currentTimeMillis();
+            this.status = status;
+        }
+
+        /**
+         * A queued job won't run, a running one stops at its next write and
+         * ends cancelled, and a done one has its file deleted.
+         */
+        private synchronized void cancel() {
+            cancelled = true;
+            if (future != null) {
+                future.cancel(false);
+            }
+            if (status == Status.QUEUED || status == Status.DONE) {
+                end(Status.CANCELLED, null);
+            }
+        }
+
+        private void deleteFile() {
+            if (file != null && file.exists() && !file.delete()) {
+                logger.warn("Could not delete export file " + file.getAbsolutePath());
+            }
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public String getExportType() {
+            return exportType;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the exported file, once the job is done
+         */
+        public File getFile() {
+            return status == Status.DONE ? file : null;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            final JSONObject json = new JSONObject();
+            json.put("job", id);
+            json.put("exportType", exportType);
+            json.put("status", status.toString());
+            json.put("created", created.getTime());
+            final Export export = this.export;
+            json.put("rows", export != null ? export.getRowCount() : 0);
+            json.put("bytes", bytes);
+            if (finished > 0) {
+                json.put("finished", finished);
+            }
+            if (error != null) {
+                json.put("error", error);
+            }
+            return json;
+        }
+
+        /**
+         * Counts what's written, remembers write failures, and stops the
+         * action at its next write once the job is cancelled.
+         */
+        private class JobOutputStream extends FilterOutputStream {
+
+            private IOException failure;
+
+            JobOutputStream(final OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                checkCancelled();
+                try {
+                    out.write(b);
+                } catch (IOException e) {
+                    failure = e;
+                    throw e;
+                }
+                bytes++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                checkCancelled();
+                try {
+                    out.write(b, off, len);
+                } catch (IOException e) {
+                    failure = e;
+                    throw e;
+                }
+                bytes += len;
+            }
+
+            private void checkCancelled() throws IOException {
+                if (cancelled) {
+                    throw new IOException("Export job " + id + " was cancelled");
+                }
+            }
+        }
+    }
+
+    public static synchronized ExportJobs getInstance() {
+        if (instance == null) {
+            instance = new ExportJobs();
+        }
+        return instance;
+    }
+
+    /**
+     * Stops the workers and deletes every job's file, if jobs were ever used.
+     */
+    public static synchronized void shutdownInstance() {
+        if (instance != null) {
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    private ExportJobs() {
+
+        final IPluginResourceLoader resLoader = PentahoSystem.get(IPluginResourceLoader.class, null);
+        final int workerCount = (int) getSetting(resLoader, "workers", DEFAULT_WORKERS);
+        final int queueSize = (int) getSetting(resLoader, "queue-size", DEFAULT_QUEUE_SIZE);
+        jobsPerUser = (int) getSetting(resLoader, "jobs-per-user", DEFAULT_JOBS_PER_USER);
+        expiry = getSetting(resLoader, "expiry", DEFAULT_EXPIRY);
+
+        workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(queueSize), new NamedThreadFactory("cdf-export-worker"));
+        sweeper = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("cdf-export-sweeper"));
+        final long sweepInterval = Math.min(expiry, MAX_SWEEP_INTERVAL);
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+
+            public void run() {
+                expire();
+            }
+        }, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+
+        logger.info("Export jobs enabled with " + workerCount + " workers");
+    }
+
+    private static long getSetting(final IPluginResourceLoader resLoader, final String name, final long defaultValue) {
+        final String value = resLoader.getPluginSetting(ExportJobs.class, "settings/export/jobs/" + name);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid export job setting " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private int count;
+
+        NamedThreadFactory(final String name) {
+            this.name = name;
+        }
+
+        public synchronized Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, name + "-" + (++count));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Queues an export of the action in the request parameters, as /Export
+     * would run it.
+     *
+     * @throws InvalidCdfOperationException when the user already has too many
+     *                                      unfinished jobs or the queue is full
+     */
+    public synchronized Job submit(final IParameterProvider requestParams, final IPentahoSession userSession) throws InvalidCdfOperationException {
+
+        final Job job = new Job(requestParams, userSession);
+        int unfinished = 0;
+        for (final Job other : jobs.values()) {
+            if (other.user.equals(job.user) && !other.status.isFinished()) {
+                unfinished++;
+            }
+        }
+        if (unfinished >= jobsPerUser) {
+            throw new InvalidCdfOperationException("Too many export jobs running, at most " + jobsPerUser + " per user");
+        }
+
+        jobs.put(job.id, job);
+        try {
+            job.future = workers.submit(job);
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            throw new InvalidCdfOperationException("Too many export jobs queued, try again later");
+        }
+        return job;
+    }
+
+    /**
+     * @return the user's job with the given id, null if there isn't one
+     */
+    public Job getJob(final String id, final IPentahoSession userSession) {
+        final Job job = id != null ? jobs.get(id) : null;
+        return job != null && job.user.equals(userSession.getName()) ? job : null;
+    }
+
+    /**
+     * @return the user's jobs, oldest first
+     */
+    public JSONArray listJobs(final IPentahoSession userSession) throws JSONException {
+        final List<Job> userJobs = new ArrayList<Job>();
+        for (final Job job : jobs.values()) {
+            if (job.user.equals(userSession.getName())) {
+                userJobs.add(job);
+            }
+        }
+        Collections.sort(userJobs, new Comparator<Job>() {
+
+            public int compare(Job a, Job b) {
+                return a.created.compareTo(b.created);
+            }
+        });
+        final JSONArray result = new JSONArray();
+        for (final Job job : userJobs) {
+            result.put(job.toJSON());
+        }
+        return result;
+    }
+
+    /**
+     * Cancels a job: a queued one won't run, a running one stops at its next
+     * write and a done one has its file deleted.
+     */
+    public void cancel(final Job job) {
+        job.cancel();
+        // A cancelled queued job would hold its queue slot until a worker took it
+        workers.purge();
+    }
+
+    /**
+     * Drops the jobs that ended longer than the expiry time ago.
+     */
+    private void expire() {
+        final long limit = System.currentTimeMillis() - expiry;
+        for (final Iterator<Job> it = jobs.values().iterator(); it.hasNext();) {
+            final Job job = it.next();
+            if (job.status.isFinished() && job.finished < limit) {
+                it.remove();
+                job.deleteFile();
+            }
+        }
+    }
+
+    private void shutdown() {
+        sweeper.shutdownNow();
+        for (final Job job : jobs.values()) {
+            job.cancelled = true;
+        }
+        workers.shutdownNow();
+        try {
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (final Job job : jobs.values()) {
+            job.deleteFile();
+        }
+        jobs.clear();
+    }
+}
@@ -1,5 +1,6 @@
 package org.pentaho.cdf;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.InputStream;
@@ -8,6 +9,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.pentaho.cdf.utils.StaticFileServer;
 import org.pentaho.platform.api.repository.ISolutionRepository;
 import org.pentaho.platform.api.engine.IPentahoSession;
 import org.pentaho.platform.engine.core.system.PentahoSystem;
@@ -47,11 +49,17 @@ public class GetCDFResource extends ServletBase {
         resourcePath = resource;
         
         ISolutionRepository repository = PentahoSystem.get(ISolutionRepository.class,session);// PentahoSystem.getSolutionRepository(session);
-        InputStream in = repository.getResourceInputStream(resourcePath, true, ISolutionRepository.ACTION_EXECUTE);
-        if (in == null) {
-            error(Messages.getErrorString("GetResource.ERROR_0003_RESOURCE_MISSING", resourcePath)); //$NON-NLS-1$
-            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
-            return;
+        // Files on disk are sent straight from it, with validators for conditional requests
+        File file = new File(PentahoSystem.getApplicationContext().getSolutionPath(resourcePath));
+        boolean onDisk = file.isFile() && repository.getSolutionFile(resourcePath, ISolutionRepository.ACTION_EXECUTE) != null;
+        InputStream in = null;
+        if (!onDisk) {
+            in = repository.getResourceInputStream(resourcePath, true, ISolutionRepository.ACTION_EXECUTE);
+            if (in == null) {
+                error(Messages.getErrorString("GetResource.ERROR_0003_RESOURCE_MISSING", resourcePath)); //$NON-NLS-1$
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
         }
         String mimeType = getServletContext().getMimeType(resourcePath);
 
@@ -64,18 +72,19 @@ public class GetCDFResource extends ServletBase {
         }
         response.setCharacterEncoding(LocaleHelper.getSystemEncoding());
         response.setHeader("expires", "0"); //$NON-NLS-1$ //$NON-NLS-2$
+        if (onDisk) {
+            StaticFileServer.serve(file, request, response, response.getOutputStream());
+            return;
+        }
         // Open the input and output streams
         OutputStream out = response.getOutputStream();
         try {
             // Copy the contents of the file to the output stream
-            byte[] buf = new byte[1024];
+            byte[] buf = new byte[8192];
             int count = 0;
-            int totalBytes = 0;
             while ((count = in.read(buf)) >= 0) {
                 out.write(buf, 0, count);
-                totalBytes += count;
             }
-            response.setContentLength(totalBytes);
         } finally {
             in.close();
             out.close();
@@ -0,0 +1,98 @@
+package org.pentaho.cdf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A plugin RUN command (eg: <code>ViewAction?solution={solution}&amp;path={path}&amp;action={name}</code>)
+ * compiled once into literal segments and variable slots, so that building the
+ * link for a file is a single pass over a StringBuilder instead of a chain of
+ * String.replace/replaceAll calls.
+ */
+public class LinkTemplate
+{
+
+  private static final String[] VARIABLES =
+  {
+    "{solution}", "{path}", "{name}"
+  };
+  private static final int SOLUTION = 0;
+  private static final int PATH = 1;
+  private static final int NAME = 2;
+  private final String[] segments;
+  private final int[] slots;
+  private final int literalLength;
+
+  private LinkTemplate(final String[] segments, final int[] slots)
+  {
+    this.segments = segments;
+    this.slots = slots;
+    int length = 0;
+    for (final String segment : segments)
+    {
+      length += segment.length();
+    }
+    this.literalLength = length;
+  }
+
+  public static LinkTemplate compile(final String rawUrl)
+  {
+
+    final String url = ("/" + rawUrl).replace("&amp;", "&");
+    final List<String> segments = new ArrayList<String>();
+    final List<Integer> slots = new ArrayList<Integer>();
+
+    int start = 0;
+    while (true)
+    {
+      int next = -1;
+      int variable = -1;
+      for (int i = 0; i < VARIABLES.length; i++)
+      {
+        final int index = url.indexOf(VARIABLES[i], start);
+        if (index != -1 && (next == -1 || index < next))
+        {
+          next = index;
+          variable = i;
+        }
+      }
+      if (next == -1)
+      {
+        segments.add(url.substring(start));
+        break;
+      }
+      segments.add(url.substring(start, next));
+      slots.add(variable);
+      start = next + VARIABLES[variable].length();
+    }
+
+    final int[] slotArray = new int[slots.size()];
+    for (int i = 0; i < slotArray.length; i++)
+    {
+      slotArray[i] = slots.get(i);
+    }
+    return new LinkTemplate(segments.toArray(new String[segments.size()]), slotArray);
+  }
+
+  public String expand(final String solution, final String path, final String name)
+  {
+    final StringBuilder link = new StringBuilder(literalLength + solution.length() + path.length() + name.length());
+    for (int i = 0; i < slots.length; i++)
+    {
+      link.append(segments[i]);
+      switch (slots[i])
+      {
+        case SOLUTION:
+          link.append(solution);
+          break;
+        case PATH:
+          link.append(path);
+          break;
+        case NAME:
+          link.append(name);
+          break;
+      }
+    }
+    return link.append(segments[slots.length]).toString();
+  }
+}
@@ -4,8 +4,9 @@
  */
 package org.pentaho.cdf;
 
-import java.util.Hashtable;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -35,6 +36,12 @@ public class NavigateComponent extends PentahoBase
   private static final String NAVIGATOR = "navigator";
   private static final String CONTENTLIST = "contentList";
   private static final String SOLUTIONTREE = "solutionTree";
+  private static final String FOLDER = "folder";
+  private static final int DEFAULT_DEPTH = 1;
+  private static final int DEFAULT_PAGE_SIZE = 100;
+  /* Clients can't have more of the repository than this expanded in one request */
+  private static final int MAX_DEPTH = 3;
+  private static final int MAX_PAGE_SIZE = 500;
   private static final String TYPE_DIR = "FOLDER";
   private static final String TYPE_XACTION = "XACTION";
   private static final String TYPE_URL = "URL";
@@ -50,6 +57,7 @@ public class NavigateComponent extends PentahoBase
   ICacheManager cacheManager;
   boolean cachingAvailable;
   String contextPath;
+  private Map<String, LinkTemplate> linkTemplates;
 
   public NavigateComponent(final IPentahoSession userSession, String contextPath)
   {
@@ -64,6 +72,18 @@ public class NavigateComponent extends PentahoBase
 
   public String getNavigationElements(final String mode, final String solution, final String path) throws JSONException, ParserConfigurationException
   {
+    return getNavigationElements(mode, solution, path, DEFAULT_DEPTH, 0, DEFAULT_PAGE_SIZE);
+  }
+
+  /**
+   * Same as getNavigationElements(mode, solution, path), with the paging
+   * arguments used by the lazy <i>folder</i> mode: how many levels to expand
+   * below the requested folder, the cursor (index of the first child) and the
+   * maximum number of children returned per folder.
+   */
+  public String getNavigationElements(final String mode, final String solution, final String path,
+          final int depth, final int cursor, final int pageSize) throws JSONException, ParserConfigurationException
+  {
 
 
     if (mode.equals(NAVIGATOR))
@@ -78,6 +98,10 @@ public class NavigateComponent extends PentahoBase
     {
       return getSolutionTreeJSON();
     }
+    else if (mode.equals(FOLDER))
+    {
+      return getFolderJSON(solution, path, depth, cursor, pageSize);
+    }
     else
     {
       logger.warn("Invalid mode: " + mode);
@@ -268,7 +292,7 @@ public class NavigateComponent extends PentahoBase
             for (final Node fileNode : fileNodes)
             {
 
-              processFileNode(json, fileNode, "files");
+              processFileNode(json, solution, path, fileNode, "files");
 
             }
           }
@@ -305,83 +329,187 @@ public class NavigateComponent extends PentahoBase
     return array;
   }
 
-  private void processFileNode(JSONObject json, Node fileNode, String placeholder) throws JSONException
+  private void processFileNode(JSONObject json, String _solution, String _path, Node fileNode, String placeholder) throws JSONException
   {
 
+    final String name = fileNode.valueOf("@name");
+    final String type = name.substring(name.lastIndexOf(".") + 1, name.length());
+
+    /* file type -> compiled link template; if we don't know this type, don't return it */
+    final LinkTemplate template = getLinkTemplates().get(type.toLowerCase());
+    if (template == null)
+    {
+      return;
+    }
+
+    final String path = type.equals(TYPE_DIR) ? (_path.length() > 0 ? _path + "/" + name : name) : _path;
 
-    /* Get the hashTable that contains the pairs:  supported-file-type -> associated url to use */
-    final Hashtable<String, String> readAbility = PluginCatalogEngine.getInstance().getPlugins();
-    String link = "";
-    String _solution = json.getString("solution");
-    String _path = json.getString("path");
-    String relativeUrl = contextPath;
+    JSONObject file = new JSONObject();
+    file.put("file", name);
+    file.put("solution", _solution);
+    file.put("path", _path);
+    file.put("type", type);
+    file.put("visible", fileNode.valueOf("@visible").equals("true"));
+    file.put("title", fileNode.valueOf("@localized-name"));
+    file.put("description", fileNode.valueOf("@description"));
+    file.put("link", template.expand(_solution, path, name));
 
+    json.append(placeholder, file);
 
-    String name = fileNode.valueOf("@name");
-    final String type = name.substring(name.lastIndexOf(".") + 1, name.length());
+  }
 
-    if (relativeUrl.endsWith("/"))
+  private Map<String, LinkTemplate> getLinkTemplates()
+  {
+    // fetched once per navigation request instead of once per file node
+    if (linkTemplates == null)
     {
-      relativeUrl = relativeUrl.substring(0, relativeUrl.length() - 1);
+      linkTemplates = PluginCatalogEngine.getInstance().getLinkTemplates();
     }
-    final String path = type.equals(TYPE_DIR) ? (_path.length() > 0 ? _path + "/" + name : name) : _path;
-    //final String url = (type != null && type.equals(TYPE_URL)) ? (!fileNode.valueOf("@url").startsWith("http") && !fileNode.valueOf("@url").startsWith(relativeUrl) && !fileNode.valueOf("@url").startsWith("/") ? /*CdfContentGenerator.BASE_URL +*/ "/" + fileNode.valueOf("@url") : fileNode.valueOf("@url")) : null;
+    return linkTemplates;
+  }
 
-    String url = null;
+  /**
+   * Lazy navigation: returns a single folder level (plus <code>depth - 1</code>
+   * levels below it), listing folders first and then known files. Each folder
+   * carries its folderCount/fileCount so the client can decide whether it is
+   * worth expanding, and a <code>cursor</code> is returned whenever there are
+   * more children than <code>pageSize</code>.
+   */
+  @SuppressWarnings("unchecked")
+  private String getFolderJSON(final String _solution, final String _path, final int depth, final int cursor, final int pageSize)
+  {
 
-    if (type != null && type.equals(TYPE_URL))
+    String jsonString = null;
+
+    try
     {
-      if (!fileNode.valueOf("@url").startsWith("http") && !fileNode.valueOf("@url").startsWith(relativeUrl) && !fileNode.valueOf("@url").startsWith("/"))
+
+      final Document navDoc = getRepositoryDocument(this.userSession);
+      final Node tree = navDoc.getRootElement();
+      final String solution = _solution == null ? "" : _solution;
+      final String path = _path == null ? "" : _path;
+
+      final JSONObject json = new JSONObject();
+      Node folder = tree;
+
+      if (solution.length() > 0)
       {
-        url = "/" + fileNode.valueOf("@url");
+        final List nodes = tree.selectNodes("./file[@name='" + solution + "']"); //$NON-NLS-1$
+        if (nodes.size() != 1)
+        {
+          return json.toString(2);
+        }
+        folder = findDirectoryNode((Node) nodes.get(0), path);
+        if (folder == null)
+        {
+          return json.toString(2);
+        }
+        json.put("name", folder.valueOf("@name"));
+        json.put("title", folder.valueOf("@localized-name"));
+        json.put("description", folder.valueOf("@description"));
+        json.put("visible", folder.valueOf("@visible").equals("true"));
       }
       else
       {
-        url = fileNode.valueOf("@url");
+        json.put("name", "");
+        json.put("title", "Solution");
+        json.put("visible", true);
       }
-    }
-    else
-    {
-      url = null;
-    }
+      json.put("id", solution.length() == 0 ? "/" : solution + "/" + path);
+      json.put("solution", solution);
+      json.put("path", path);
+      json.put("type", TYPE_DIR);
 
+      expandFolder(json, folder, solution, path, Math.min(Math.max(depth, 1), MAX_DEPTH), Math.max(cursor, 0),
+              pageSize > 0 ? Math.min(pageSize, MAX_PAGE_SIZE) : DEFAULT_PAGE_SIZE);
 
-    /*create the link*/
-    final String lowType = type.toLowerCase();
-    if (readAbility.containsKey(lowType))
+      jsonString = json.toString(2);
+    }
+    catch (Exception e)
     {
+      logger.error("Error: " + e.getClass().getName() + " - " + e.getMessage(), e);
+    }
 
-      String s = "/" + readAbility.get(lowType);
+    return jsonString;
 
-      /* Replace the generic variable names for the variable values */
-      s = s.replace("{solution}", _solution);
-      s = s.replace("{path}", path);
-      s = s.replace("{name}", name);
-      s = s.replaceAll("&amp;", "&");
+  }
 
-      link = link + s;
+  @SuppressWarnings("unchecked")
+  private void expandFolder(final JSONObject json, final Node folder, final String solution, final String path,
+          final int depth, final int cursor, final int pageSize) throws JSONException
+  {
 
+    final List<Node> folders = folder.selectNodes("./file[@isDirectory='true']"); //$NON-NLS-1$
+    final List<Node> files = getListedFiles(folder);
+    final int total = folders.size() + files.size();
+    final int end = Math.min(total, cursor + pageSize);
 
-      JSONObject file = new JSONObject();
-      file.put("file", name);
-      file.put("solution", json.get("solution"));
-      file.put("path", json.get("path"));
-      file.put("type", type);
-      file.put("visible", fileNode.valueOf("@visible").equals("true"));
-      file.put("title", fileNode.valueOf("@localized-name"));
-      file.put("description", fileNode.valueOf("@description"));
-      file.put("link", link);
+    json.put("folderCount", folders.size());
+    json.put("fileCount", files.size());
+    json.put("folders", new JSONArray());
+    json.put("files", new JSONArray());
 
-      json.append(placeholder, file);
-      return;
-    }
-    else
+    for (int i = cursor; i < end; i++)
     {
-      // If we don't know this, don't return it
-      return;
+      if (i < folders.size())
+      {
+        final Node node = folders.get(i);
+        final String name = node.valueOf("@name");
+        final boolean visible = node.valueOf("@visible").equals("true");
+        final String childSolution = solution.length() == 0 ? name : solution;
+        final String childPath = solution.length() == 0 ? "" : (path.length() == 0 ? name : path + "/" + name);
+
+        final JSONObject child = new JSONObject();
+        child.put("id", childSolution + "/" + childPath);
+        child.put("name", name);
+        child.put("solution", childSolution);
+        child.put("path", childPath);
+        child.put("type", TYPE_DIR);
+        child.put("visible", visible);
+        child.put("title", visible ? node.valueOf("@localized-name") : "Hidden");
+        child.put("description", node.valueOf("@description"));
+
+        if (visible && depth > 1)
+        {
+          expandFolder(child, node, childSolution, childPath, depth - 1, 0, pageSize);
+        }
+        else
+        {
+          child.put("folderCount", visible ? node.selectNodes("./file[@isDirectory='true']").size() : 0); //$NON-NLS-1$
+          child.put("fileCount", visible ? getListedFiles(node).size() : 0);
+        }
+        json.append("folders", child);
+      }
+      else
+      {
+        processFileNode(json, solution, path, files.get(i - folders.size()), "files");
+      }
     }
 
+    if (end < total)
+    {
+      json.put("cursor", end);
+    }
+  }
 
+  /**
+   * Files directly under the given folder that we know how to link to.
+   */
+  @SuppressWarnings("unchecked")
+  private List<Node> getListedFiles(final Node folder)
+  {
+    final Map<String, LinkTemplate> templates = getLinkTemplates();
+    final List<Node> files = folder.selectNodes("./file[@isDirectory='false']"); //$NON-NLS-1$
+    final List<Node> listed = new ArrayList<Node>(files.size());
+    for (final Node fileNode : files)
+    {
+      final String name = fileNode.valueOf("@name");
+      if (templates.containsKey(name.substring(name.lastIndexOf(".") + 1).toLowerCase()))
+      {
+        listed.add(fileNode);
+      }
+    }
+    return listed;
   }
 
   @SuppressWarnings("unchecked")
@@ -425,7 +553,7 @@ public class NavigateComponent extends PentahoBase
 
         for (final Object fileNode : nodes)
         {
-          processFileNode(json, (Node) fileNode, "content");
+          processFileNode(json, _solution, _path, (Node) fileNode, "content");
         }
 
       }
@@ -472,4 +600,26 @@ public class NavigateComponent extends PentahoBase
 
     return node;
   }
+
+  /**
+   * @return the folder at _path below node, null if there's no such folder;
+   *         unlike getDirectoryNode, never an ancestor of it
+   */
+  private Node findDirectoryNode(Node node, final String _path)
+  {
+    for (final String name : _path.split("/"))
+    {
+      if (name.length() == 0)
+      {
+        continue;
+      }
+      final List nodes = node.selectNodes("./file[@isDirectory='true'][@name='" + name + "']"); //$NON-NLS-1$
+      if (nodes.size() != 1)
+      {
+        return null;
+      }
+      node = (Node) nodes.get(0);
+    }
+    return node;
+  }
 }
@@ -1,5 +1,7 @@
 package org.pentaho.cdf;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
 import org.dom4j.Node;
@@ -9,59 +11,122 @@ import org.pentaho.platform.util.xml.dom4j.XmlDom4JHelper;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
-
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Catalog of the file types the installed plugins know how to run.
+ * <p/>
+ * The catalog is built by scanning every system/&lt;plugin&gt;/plugin.xml (in
+ * parallel) and is published as an immutable snapshot, so readers never see a
+ * half built map. It is only rebuilt when a plugin folder or plugin.xml has
+ * changed since the last scan, and that check itself runs at most once every
+ * CHECK_INTERVAL milliseconds.
+ */
 public class PluginCatalogEngine {
 
-  public static final String PLUGIN_DIR = PentahoSystem.getApplicationContext().getSolutionPath("system/");
+  private static final Log logger = LogFactory.getLog(PluginCatalogEngine.class);
+  public static final String PLUGIN_DIR = PentahoSystem.getApplicationContext() != null ? PentahoSystem.getApplicationContext().getSolutionPath("system/") : null;
+  private static final long CHECK_INTERVAL = 10000;
   public String path;
   private static PluginCatalogEngine _engine;
-  private Hashtable<String, String> pluginPool;
+  private volatile Catalog catalog;
+  private volatile long lastCheck;
+
+  /**
+   * Immutable view of one scan of the system folder.
+   */
+  private static class Catalog {
+
+    /* Key = file type, Object = command to run the assigned file type */
+    final Map<String, String> plugins;
+    final Map<String, LinkTemplate> linkTemplates;
+    final long stamp;
+
+    Catalog(final Map<String, String> plugins, final long stamp) {
+      final Map<String, LinkTemplate> templates = new HashMap<String, LinkTemplate>();
+      for (final Map.Entry<String, String> entry : plugins.entrySet()) {
+        templates.put(entry.getKey(), LinkTemplate.compile(entry.getValue()));
+      }
+      this.plugins = Collections.unmodifiableMap(plugins);
+      this.linkTemplates = Collections.unmodifiableMap(templates);
+      this.stamp = stamp;
+    }
+  }
 
   public PluginCatalogEngine() {
-    this.path = PLUGIN_DIR;
-    catalogPlugins(PLUGIN_DIR);
+    this(PLUGIN_DIR);
   }
 
   public PluginCatalogEngine(final String path) {
     this.path = path;
-    catalogPlugins(path);
+    refresh();
   }
 
-  public static PluginCatalogEngine getInstance() {
+  public static synchronized PluginCatalogEngine getInstance() {
     if (_engine == null) _engine = new PluginCatalogEngine();
     return _engine;
   }
 
-  public void refresh() {
-    catalogPlugins(this.path);
+  /**
+   * Unconditionally rescans the plugin folders.
+   */
+  public synchronized void refresh() {
+    final String[] listPlugins = listPlugins();
+    catalog = catalogPlugins(listPlugins, getStamp(listPlugins));
+    lastCheck = System.currentTimeMillis();
   }
 
+  /**
+   * @return file type -> RUN command, a copy of the current catalog
+   */
   public Hashtable<String, String> getPlugins() {
-    return pluginPool;
+    return new Hashtable<String, String>(getCatalog().plugins);
   }
 
-  private void catalogPlugins(final String path) {
-
-    /*
-    * Search the project-.../solution/system/
-    * for the folders that contain a plugin.xml
-    * file
-     */
-
-    final File systemFolder = new File(path);
+  /**
+   * @return file type -> RUN command, already compiled into a LinkTemplate
+   */
+  public Map<String, LinkTemplate> getLinkTemplates() {
+    return getCatalog().linkTemplates;
+  }
 
-    /*
-    * Hashtable pluginPool:
-    * Key = file type
-    * Object = command to run the assigned file type
-    */
+  private Catalog getCatalog() {
+    if (System.currentTimeMillis() - lastCheck > CHECK_INTERVAL) {
+      refreshIfChanged();
+    }
+    return catalog;
+  }
 
-    pluginPool = new Hashtable<String, String>();
+  private synchronized void refreshIfChanged() {
+    if (System.currentTimeMillis() - lastCheck <= CHECK_INTERVAL) {
+      // someone else checked while we were waiting for the lock
+      return;
+    }
+    final String[] listPlugins = listPlugins();
+    final long stamp = getStamp(listPlugins);
+    if (stamp != catalog.stamp) {
+      logger.info("Plugin folders changed, rebuilding plugin catalog");
+      catalog = catalogPlugins(listPlugins, stamp);
+    }
+    lastCheck = System.currentTimeMillis();
+  }
 
-    /* xaction case is added manually because it doesnt need a plugin to be runnable */
-    pluginPool.put("xaction", "ViewAction?solution={solution}&path={path}&action={name}");
+  /*
+  * Search the project-.../solution/system/
+  * for the folders that contain a plugin.xml
+  * file
+   */
+  private String[] listPlugins() {
 
     final FilenameFilter subFolders = new FilenameFilter() {
       public boolean accept(final File systemFolder, final String name) {
@@ -70,7 +135,30 @@ public class PluginCatalogEngine {
 
       }
     };
-    final String[] listPlugins = systemFolder.list(subFolders);
+    final String[] listPlugins = new File(path).list(subFolders);
+    return listPlugins != null ? listPlugins : new String[0];
+  }
+
+  /**
+   * Cheap fingerprint of the plugin folders: changes when a plugin is added,
+   * removed or has its plugin.xml touched.
+   */
+  private long getStamp(final String[] listPlugins) {
+    long stamp = 31 * new File(path).lastModified() + listPlugins.length;
+    for (final String plugin : listPlugins) {
+      stamp = 31 * stamp + plugin.hashCode();
+      stamp = 31 * stamp + new File(path, plugin + "/plugin.xml").lastModified();
+    }
+    return stamp;
+  }
+
+  private Catalog catalogPlugins(final String[] listPlugins, final long stamp) {
+
+    final long start = System.currentTimeMillis();
+    final Map<String, String> pluginPool = new HashMap<String, String>();
+
+    /* xaction case is added manually because it doesnt need a plugin to be runnable */
+    pluginPool.put("xaction", "ViewAction?solution={solution}&path={path}&action={name}");
 
     /*
      * Open the plugin.xml files
@@ -78,37 +166,60 @@ public class PluginCatalogEngine {
      * check for a run command for the
      * associated file type
     */
-
-    for (final String plugin : listPlugins) {
-      final String pluginFolder = PLUGIN_DIR + plugin + "/plugin.xml";
-
-      try {
-        final Document xml = XmlDom4JHelper.getDocFromFile(pluginFolder, null);
-
-        final List<Node> list = xml.selectNodes("//content-type[@type]");
-
-        String readType = null;
-        final String rawUrl;
-
-        for (final Node node : list) {
-          readType = XmlDom4JHelper.getNodeText("@type", node);
+    final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(listPlugins.length, Runtime.getRuntime().availableProcessors())));
+    try {
+      final List<Future<String[]>> results = new ArrayList<Future<String[]>>(listPlugins.length);
+      for (final String plugin : listPlugins) {
+        results.add(executor.submit(new Callable<String[]>() {
+          public String[] call() throws Exception {
+            return readPlugin(new File(path, plugin + "/plugin.xml"));
+          }
+        }));
+      }
+      for (final Future<String[]> result : results) {
+        try {
+          final String[] runCommand = result.get();
+          if (runCommand != null) {
+            pluginPool.put(runCommand[0], runCommand[1]);
+          }
+        } catch (ExecutionException e) {
+          logger.error("Error reading plugin.xml", e.getCause());
         }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdown();
+    }
+
+    final Catalog newCatalog = new Catalog(pluginPool, stamp);
+    if (logger.isDebugEnabled()) {
+      logger.debug("Plugin catalog built: " + listPlugins.length + " plugins in " + (System.currentTimeMillis() - start) + " ms");
+    }
+    return newCatalog;
+  }
 
+  /**
+   * @return {file type, RUN command} for the given plugin.xml, or null if it
+   * doesn't register a runnable content type
+   */
+  @SuppressWarnings("unchecked")
+  private static String[] readPlugin(final File pluginXml) throws DocumentException, IOException {
 
-        if (readType != null) {
-          rawUrl = xml.selectSingleNode("//operation/id[text()='RUN']/../command").getText();
+    final Document xml = XmlDom4JHelper.getDocFromFile(pluginXml.getPath(), null);
 
-          pluginPool.put(readType, rawUrl);
-        }
+    final List<Node> list = xml.selectNodes("//content-type[@type]");
 
-      } catch (DocumentException e) {
-        e.printStackTrace();
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+    String readType = null;
 
+    for (final Node node : list) {
+      readType = XmlDom4JHelper.getNodeText("@type", node);
     }
 
-
+    if (readType == null) {
+      return null;
+    }
+    final Node command = xml.selectSingleNode("//operation/id[text()='RUN']/../command");
+    return command != null ? new String[]{readType, command.getText()} : null;
   }
 }
@@ -1,45 +1,203 @@
 package org.pentaho.cdf;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pentaho.cdf.utils.LRUCache;
 import org.pentaho.platform.api.engine.IPluginResourceLoader;
 import org.pentaho.platform.engine.core.system.PentahoSystem;
 
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * User: pedro
  * Date: Dec 22, 2009
  * Time: 4:55:59 PM
+ * <p/>
+ * Plugin resources are read as UTF-8 and every occurrence of each token is
+ * replaced. html, json and cdfde resources are cached, when enabled, by path
+ * and tokens in an LRU bounded by bytes; a cached resource whose file has
+ * changed is read again. Resources read with tokens are split at them once,
+ * and kept so in another such LRU, so other token values don't read the file
+ * again.
  */
 public class ResourceManager {
 
 
   public static ResourceManager instance;
 
+  private static final Log logger = LogFactory.getLog(ResourceManager.class);
+
   public static final String PLUGIN_DIR = PentahoSystem.getApplicationContext().getSolutionPath("system/" + CdfContentGenerator.PLUGIN_NAME + "/");
-  private static final HashSet<String> CACHEABLE_EXTENSIONS = new HashSet<String>();
-  private static final HashMap<String, String> cacheContainer = new HashMap<String, String>();
+  private static final Set<String> CACHEABLE_EXTENSIONS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList("html", "json", "cdfde")));
+  private static final long DEFAULT_CACHE_SIZE = 8 * 1024 * 1024;
+  private final LRUCache<String, CachedResource> cacheContainer;
+  private final LRUCache<String, CachedTemplate> templates;
 
   private boolean isCacheEnabled = true;
 
-  public ResourceManager() {
+  /**
+   * A resource with its tokens replaced, and the file it came from as it
+   * was when read.
+   */
+  private static class CachedResource {
+
+    final String content;
+    final long lastModified;
+    final long length;
+
+    CachedResource(final String content, final long lastModified, final long length) {
+      this.content = content;
+      this.lastModified = lastModified;
+      this.length = length;
+    }
+
+    boolean isCurrent(final File file) {
+      return file.lastModified() == lastModified && file.length() == length;
+    }
+  }
 
-    CACHEABLE_EXTENSIONS.add("html");
-    CACHEABLE_EXTENSIONS.add("json");
-    CACHEABLE_EXTENSIONS.add("cdfde");
+  /**
+   * A resource split at a set of tokens, and the file it came from as it was
+   * when read.
+   */
+  private static class CachedTemplate {
+
+    final Template template;
+    final long lastModified;
+    final long length;
+
+    CachedTemplate(final Template template, final long lastModified, final long length) {
+      this.template = template;
+      this.lastModified = lastModified;
+      this.length = length;
+    }
+
+    boolean isCurrent(final File file) {
+      return file.lastModified() == lastModified && file.length() == length;
+    }
+  }
+
+  /**
+   * Text split, once, at the occurrences of a set of tokens, so they're all
+   * replaced in one pass. Tokens are found left to right in the original
+   * text, the longest one when several start at the same place; replacement
+   * values aren't searched again.
+   */
+  static class Template {
+
+    private final List<String> literals = new ArrayList<String>();
+    private final List<String> tokens = new ArrayList<String>();
+
+    Template(final String text, final Set<String> tokenNames) {
+      final List<String> names = new ArrayList<String>();
+      for (final String name : tokenNames) {
+        if (name.length() > 0) {
+          names.add(name);
+        }
+      }
+      // Where each token is next found, -1 once there are no more
+      final int[] next = new int[names.size()];
+      for (int i = 0; i < next.length; i++) {
+        next[i] = text.indexOf(names.get(i));
+      }
+
+      int start = 0;
+      while (true) {
+        int match = -1;
+        for (int i = 0; i < next.length; i++) {
+          if (next[i] != -1 && (match == -1 || next[i] < next[match]
+              || (next[i] == next[match] && names.get(i).length() > names.get(match).length()))) {
+            match = i;
+          }
+        }
+        if (match == -1) {
+          break;
+        }
+        final String token = names.get(match);
+        literals.add(text.substring(start, next[match]));
+        tokens.add(token);
+        start = next[match] + token.length();
+        // Only the token found, and any overlapping it, are looked for again
+        for (int i = 0; i < next.length; i++) {
+          if (next[i] != -1 && next[i] < start) {
+            next[i] = text.indexOf(names.get(i), start);
+          }
+        }
+      }
+      literals.add(text.substring(start));
+    }
+
+    /**
+     * @return the characters of text kept
+     */
+    long getLength() {
+      long length = 0;
+      for (final String literal : literals) {
+        length += literal.length();
+      }
+      return length;
+    }
+
+    String apply(final Map<String, String> values) {
+      final StringBuilder out = new StringBuilder();
+      for (int i = 0; i < tokens.size(); i++) {
+        out.append(literals.get(i)).append(values.get(tokens.get(i)));
+      }
+      return out.append(literals.get(tokens.size())).toString();
+    }
+  }
+
+  public ResourceManager() {
 
     final IPluginResourceLoader resLoader = PentahoSystem.get(IPluginResourceLoader.class, null);
     this.isCacheEnabled = Boolean.parseBoolean(resLoader.getPluginSetting(this.getClass(), "pentaho-cdf-dd/enable-cache"));
 
-    //
+    final long cacheSize = getCacheSize(resLoader);
+    cacheContainer = new LRUCache<String, CachedResource>(cacheSize) {
+
+      @Override
+      protected long sizeOf(final CachedResource value) {
+        // UTF-16
+        return 2L * value.content.length();
+      }
+    };
+    templates = new LRUCache<String, CachedTemplate>(cacheSize) {
+
+      @Override
+      protected long sizeOf(final CachedTemplate value) {
+        return 2L * value.template.getLength();
+      }
+    };
 
   }
 
 
-  public static ResourceManager getInstance() {
+  private static long getCacheSize(final IPluginResourceLoader resLoader) {
+    final String size = resLoader.getPluginSetting(ResourceManager.class, "settings/resource-cache/size");
+    if (size == null || size.trim().length() == 0) {
+      return DEFAULT_CACHE_SIZE;
+    }
+    try {
+      return Long.parseLong(size.trim());
+    } catch (NumberFormatException e) {
+      logger.warn("Invalid resource cache size: " + size);
+      return DEFAULT_CACHE_SIZE;
+    }
+  }
+
+
+  public static synchronized ResourceManager getInstance() {
 
     if (instance == null) {
       instance = new ResourceManager();
@@ -51,49 +209,74 @@ public class ResourceManager {
   public String getResourceAsString(final String path, final HashMap<String, String> tokens) throws IOException {
 
     final String extension = getResourceExtension(path);
+    final boolean cacheable = isCacheEnabled && CACHEABLE_EXTENSIONS.contains(extension);
+    final File file = new File(PLUGIN_DIR + path);
 
-    final String cacheKey = buildCacheKey(path, tokens);
-
+    final String cacheKey = cacheable ? buildCacheKey(path, tokens) : null;
 
-    // If it's cachable and we have it, return it.
-    if (isCacheEnabled && CACHEABLE_EXTENSIONS.contains(extension) && cacheContainer.containsKey(cacheKey)) {
+    // If it's cachable and we have it, and the file hasn't changed, return it.
+    if (cacheable) {
+      final CachedResource cached = cacheContainer.get(cacheKey);
+      if (cached != null && cached.isCurrent(file)) {
+        return cached.content;
+      }
+    }
 
-      // return from cache. Make sure we return a clone of the original object
-      return cacheContainer.get(cacheKey);
+    // Look at the file before reading it: a change meanwhile only makes the cached copy look stale
+    final long lastModified = file.lastModified();
+    final long length = file.length();
 
+    final String output;
+    if (tokens != null && !tokens.isEmpty()) {
+      // Make replacement of tokens
+      output = getTemplate(path, file, tokens, lastModified, length).apply(tokens);
+    } else {
+      output = read(file, length);
     }
 
-    // Read file
-    final InputStream in = new FileInputStream(PLUGIN_DIR + path);
-    final StringBuilder resource = new StringBuilder();
-    int c;
-    while ((c = in.read()) != -1) {
-      resource.append((char) c);
+    // We have the resource. Should we cache it?
+    if (cacheable) {
+      cacheContainer.put(cacheKey, new CachedResource(output, lastModified, length));
     }
-    in.close();
 
-    // Make replacement of tokens
-    if (tokens != null) {
+    return output;
 
-      for (final String key : tokens.keySet()) {
-        final int index = resource.indexOf(key);
-        if (index != -1) {
-          resource.replace(index, index + key.length(), tokens.get(key));
-        }
-      }
+  }
 
+  /**
+   * @return the file split at the tokens' names, read unless it's kept and
+   *         the file hasn't changed
+   */
+  private Template getTemplate(final String path, final File file, final HashMap<String, String> tokens,
+      final long lastModified, final long length) throws IOException {
+
+    final List<String> names = new ArrayList<String>(tokens.keySet());
+    Collections.sort(names);
+    final StringBuilder keyBuilder = new StringBuilder();
+    appendKeyPart(keyBuilder, path);
+    for (final String name : names) {
+      appendKeyPart(keyBuilder, name);
     }
+    final String key = keyBuilder.toString();
 
-
-    final String output = resource.toString();
-
-    // We have the resource. Should we cache it?
-    if (isCacheEnabled && CACHEABLE_EXTENSIONS.contains(extension)) {
-      cacheContainer.put(cacheKey, output);
+    final CachedTemplate cached = templates.get(key);
+    if (cached != null && cached.isCurrent(file)) {
+      return cached.template;
     }
+    final Template template = new Template(read(file, length), tokens.keySet());
+    templates.put(key, new CachedTemplate(template, lastModified, length));
+    return template;
+  }
 
-    return output;
-
+  private String read(final File file, final long length) throws IOException {
+    final byte[] bytes = new byte[(int) length];
+    final DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      in.readFully(bytes);
+    } finally {
+      in.close();
+    }
+    return new String(bytes, "UTF-8");
   }
 
 
@@ -104,20 +287,35 @@ public class ResourceManager {
   }
 
 
+  /**
+   * @return the path and the tokens in name order, each string prefixed with
+   *         its length so no two different calls get the same key
+   */
   private String buildCacheKey(final String path, final HashMap<String, String> tokens) {
 
-    final StringBuilder keyBuilder = new StringBuilder(path);
+    final StringBuilder keyBuilder = new StringBuilder();
+    appendKeyPart(keyBuilder, path);
 
     if (tokens != null) {
-      for (final String key : tokens.keySet()) {
-        keyBuilder.append(key.hashCode());
-        keyBuilder.append(tokens.get(key).hashCode());
+      final List<String> keys = new ArrayList<String>(tokens.keySet());
+      Collections.sort(keys);
+      for (final String key : keys) {
+        appendKeyPart(keyBuilder, key);
+        appendKeyPart(keyBuilder, tokens.get(key));
       }
     }
 
     return keyBuilder.toString();
   }
 
+  private void appendKeyPart(final StringBuilder keyBuilder, final String part) {
+    if (part == null) {
+      keyBuilder.append('-');
+    } else {
+      keyBuilder.append(part.length()).append(':').append(part);
+    }
+  }
+
 
   private String getResourceExtension(final String path) {
 
@@ -127,6 +325,7 @@ public class ResourceManager {
 
   public void cleanCache() {
     cacheContainer.clear();
+    templates.clear();
   }
 
 }
@@ -1,46 +1,318 @@
 package org.pentaho.cdf;
 
+import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.pentaho.platform.api.engine.IParameterProvider;
 import org.pentaho.platform.api.engine.IPentahoSession;
 import org.pentaho.platform.api.engine.IRuntimeContext;
 import org.pentaho.platform.api.engine.ISolutionEngine;
 import org.pentaho.platform.engine.services.solution.SolutionHelper;
 
+/**
+ * Runs actions with their output going straight where it's wanted: the
+ * response, or a consumer that processes it while it's produced. Writes are
+ * synchronous, so an action never gets ahead of a slow client or consumer and
+ * nothing is buffered on the way.
+ * <p/>
+ * Keeps call counts, time and bytes written per action, see getStatistics().
+ */
 public class ServiceCallAction  {
 
 	private static ServiceCallAction serviceCallAction = new ServiceCallAction();
-	
+	/* Actions come from the request, so only this many get their own statistics */
+	private static final int MAX_ACTION_STATISTICS = 500;
+	private static final String OTHER_ACTIONS = "(other)";
+	private final ConcurrentMap<String, Statistics> statistics = new ConcurrentHashMap<String, Statistics>();
+	private final Statistics totals = new Statistics();
+
 	static ServiceCallAction getInstance() {
 		return serviceCallAction;
 	}
-	
-	
-	@SuppressWarnings("unchecked")
+
+	/**
+	 * Takes an action's output while it's being written.
+	 */
+	public interface OutputConsumer {
+
+		/**
+		 * The next bytes of output. A consumer that can't go on throws, which
+		 * makes the action's next write fail too.
+		 */
+		void consume(byte[] bytes, int offset, int length) throws IOException;
+
+		/**
+		 * The action is over, after all its output was consumed.
+		 */
+		void end(boolean success) throws IOException;
+	}
+
+	/**
+	 * Call counts of an action. Updated without locking, so a snapshot may be
+	 * off by the calls in progress.
+	 */
+	private static class Statistics {
+
+		final AtomicLong calls = new AtomicLong();
+		final AtomicLong failures = new AtomicLong();
+		final AtomicLong totalNanos = new AtomicLong();
+		final AtomicLong maxNanos = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+
+		void record(boolean success, long nanos, long written) {
+			calls.incrementAndGet();
+			if (!success) {
+				failures.incrementAndGet();
+			}
+			totalNanos.addAndGet(nanos);
+			bytes.addAndGet(written);
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+				max = maxNanos.get();
+			}
+		}
+
+		JSONObject toJSON() throws JSONException {
+			JSONObject json = new JSONObject();
+			long count = calls.get();
+			json.put("calls", count);
+			json.put("failures", failures.get());
+			json.put("totalMillis", totalNanos.get() / 1000000);
+			json.put("averageMillis", count > 0 ? totalNanos.get() / count / 1000000 : 0);
+			json.put("maxMillis", maxNanos.get() / 1000000);
+			json.put("bytes", bytes.get());
+			return json;
+		}
+	}
+
+	/**
+	 * Counts what goes through, passing arrays on as they come.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	/**
+	 * Hands the output to a consumer, remembering why it failed: actions tend
+	 * to log write errors rather than pass them on.
+	 */
+	private static class ConsumerOutputStream extends OutputStream {
+
+		private final OutputConsumer consumer;
+		private final byte[] single = new byte[1];
+		IOException failure;
+
+		ConsumerOutputStream(OutputConsumer consumer) {
+			this.consumer = consumer;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			single[0] = (byte) b;
+			write(single, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				consumer.consume(b, off, len);
+			} catch (IOException e) {
+				failure = e;
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * The request parameters as the Map the solution engine takes, read
+	 * through rather than copied.
+	 */
+	private static class ParameterMap extends AbstractMap<String, Object> {
+
+		private final IParameterProvider parameters;
+
+		ParameterMap(IParameterProvider parameters) {
+			this.parameters = parameters;
+		}
+
+		@Override
+		public Object get(Object key) {
+			return key instanceof String ? parameters.getStringParameter((String) key, null) : null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof String && parameters.hasParameter((String) key);
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			return new AbstractSet<Map.Entry<String, Object>>() {
+
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator() {
+					@SuppressWarnings("unchecked")
+					final Iterator<String> names = parameters.getParameterNames();
+					return new Iterator<Map.Entry<String, Object>>() {
+
+						public boolean hasNext() {
+							return names.hasNext();
+						}
+
+						public Map.Entry<String, Object> next() {
+							String name = names.next();
+							return new SimpleImmutableEntry(name, parameters.getStringParameter(name, null));
+						}
+
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					int size = 0;
+					for (Iterator<?> names = parameters.getParameterNames(); names.hasNext(); names.next()) {
+						size++;
+					}
+					return size;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Map.Entry that can't be changed, AbstractMap.SimpleImmutableEntry being
+	 * Java 6.
+	 */
+	private static class SimpleImmutableEntry implements Map.Entry<String, Object> {
+
+		private final String key;
+		private final Object value;
+
+		SimpleImmutableEntry(String key, Object value) {
+			this.key = key;
+			this.value = value;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public Object getValue() {
+			return value;
+		}
+
+		public Object setValue(Object value) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Runs the action in the solution, path and action parameters, writing its
+	 * output to out.
+	 *
+	 * @return true if the action ran successfully
+	 */
 	public boolean execute(IParameterProvider requestParams,IPentahoSession userSession, OutputStream out){
-		
-		
+
+		String actionPath = getActionPath(requestParams);
+		CountingOutputStream counter = new CountingOutputStream(out);
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			ISolutionEngine engine = SolutionHelper.execute("executeAction", userSession, actionPath, new ParameterMap(requestParams), counter);
+			int status = engine.getExecutionContext().getStatus();
+			success = status == IRuntimeContext.RUNTIME_STATUS_SUCCESS;
+			return success;
+		} finally {
+			record(actionPath, success, System.nanoTime() - start, counter.count);
+		}
+	}
+
+	/**
+	 * Runs the action in the solution, path and action parameters, handing its
+	 * output to the consumer as it's written, and ends the consumer.
+	 *
+	 * @return true if the action ran successfully
+	 * @throws IOException if the consumer failed
+	 */
+	public boolean stream(IParameterProvider requestParams, IPentahoSession userSession, OutputConsumer consumer) throws IOException {
+
+		ConsumerOutputStream out = new ConsumerOutputStream(consumer);
+		boolean success = execute(requestParams, userSession, out);
+		if (out.failure != null) {
+			throw out.failure;
+		}
+		consumer.end(success);
+		return success;
+	}
+
+	/**
+	 * @return solution/path/action, as given in the request parameters
+	 */
+	static String getActionPath(IParameterProvider requestParams) {
 		String solutionName = requestParams.getStringParameter("solution","");
-	    String actionPath = requestParams.getStringParameter("path","");
-	    String actionName = requestParams.getStringParameter("action","");
-	    actionPath = actionPath.startsWith("/") || solutionName.endsWith("/") ? actionPath : "/" + actionPath;
-	    actionPath = actionPath.endsWith("/") || actionName.startsWith("/") ? actionPath : actionPath + "/";
-	    
-
-	    Iterator<String> keys =  requestParams.getParameterNames();
-	    HashMap<String, String> parameters = new HashMap<String, String>();
-	    while(keys.hasNext()){
-	    	String key = keys.next();
-	    	parameters.put(key, requestParams.getStringParameter(key,null));
-	    }
-	    
-	    ISolutionEngine engine = SolutionHelper.execute("executeAction", userSession, solutionName + actionPath + actionName, parameters, out);
-	    int status = engine.getExecutionContext().getStatus();
-	    
-	    return status == IRuntimeContext.RUNTIME_STATUS_SUCCESS;
-	    	
+		String actionPath = requestParams.getStringParameter("path","");
+		String actionName = requestParams.getStringParameter("action","");
+		actionPath = actionPath.startsWith("/") || solutionName.endsWith("/") ? actionPath : "/" + actionPath;
+		actionPath = actionPath.endsWith("/") || actionName.startsWith("/") ? actionPath : actionPath + "/";
+		return solutionName + actionPath + actionName;
+	}
+
+	private void record(String actionPath, boolean success, long nanos, long bytes) {
+		totals.record(success, nanos, bytes);
+		Statistics action = statistics.get(actionPath);
+		if (action == null) {
+			String key = statistics.size() < MAX_ACTION_STATISTICS ? actionPath : OTHER_ACTIONS;
+			statistics.putIfAbsent(key, new Statistics());
+			action = statistics.get(key);
+		}
+		action.record(success, nanos, bytes);
+	}
+
+	/**
+	 * @return {"total": {...}, "actions": {path: {...}, ...}} with calls,
+	 * failures, time and bytes written
+	 */
+	public JSONObject getStatistics() throws JSONException {
+		JSONObject actions = new JSONObject();
+		for (Map.Entry<String, Statistics> action : statistics.entrySet()) {
+			actions.put(action.getKey(), action.getValue().toJSON());
+		}
+		JSONObject json = new JSONObject();
+		json.put("total", totals.toJSON());
+		json.put("actions", actions);
+		return json;
 	}
 
 }
@@ -1,11 +1,14 @@
 package org.pentaho.cdf.comments;
 
 import java.io.InputStream;
-import java.lang.reflect.Method;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.apache.commons.lang.time.FastDateFormat;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Query;
@@ -22,6 +25,7 @@ import org.pentaho.platform.api.engine.IParameterProvider;
 import org.pentaho.platform.api.engine.IPentahoSession;
 import org.pentaho.platform.api.engine.IPluginResourceLoader;
 import org.pentaho.platform.engine.core.system.PentahoSystem;
+import pt.webdetails.cpf.ActionDispatcher;
 
 /**
  *
@@ -31,12 +35,31 @@ public class CommentsEngine
 {
 
   private static final Log logger = LogFactory.getLog(CommentsEngine.class);
+  /* Actions are the public methods taking the request parameters and the user session */
+  private static final ActionDispatcher actions = new ActionDispatcher(CommentsEngine.class, new Class<?>[]
+  {
+    IParameterProvider.class, IPentahoSession.class
+  }, "process");
   private static CommentsEngine _instance;
   private static final int DELETE_OPERATION = 0;
   private static final int ARCHIVE_OPERATION = 1;
-  private static final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+  // FastDateFormat is thread safe, unlike a shared SimpleDateFormat
+  private static final FastDateFormat format = FastDateFormat.getInstance("yyyy-MM-dd HH:mm");
+  private static final int MAX_BATCH_SIZE = 500;
+  private static final int DEFAULT_MAX_WAITERS = 50;
+  private static final long DEFAULT_MAX_WAIT = 30000;
+  private CommentsFeed feed;
+  private long maxWait;
+
+  /**
+   * @return calls, errors and time of each action called so far
+   */
+  public static JSONObject getActionStatistics() throws JSONException
+  {
+    return actions.getStatistics();
+  }
 
-  public static CommentsEngine getInstance()
+  public static synchronized CommentsEngine getInstance()
   {
     if (_instance == null)
     {
@@ -47,6 +70,7 @@ public class CommentsEngine
 
   public CommentsEngine()
   {
+    initializeFeed();
     try
     {
       logger.info("Creating CommentsEngine instance");
@@ -64,17 +88,17 @@ public class CommentsEngine
 
     String actionParam = requestParams.getStringParameter("action", "");
 
-    Class[] params =
-    {
-      IParameterProvider.class, IPentahoSession.class
-    };
     try
     {
 
-      Method mthd = this.getClass().getMethod(actionParam, params);
+      ActionDispatcher.Action action = actions.get(actionParam);
+      if (action == null)
+      {
+        throw new NoSuchMethodException(actionParam);
+      }
       JSONObject json;
 
-      json = (JSONObject) mthd.invoke(this, requestParams, userSession);
+      json = (JSONObject) action.invoke(this, requestParams, userSession);
 
       return json.toString(2);
 
@@ -86,7 +110,7 @@ public class CommentsEngine
     }
     catch (NoSuchMethodException ex)
     {
-      logger.error("NoSuchMethodException : " + actionParam + " - " + getExceptionDescription(ex));
+      logger.error("NoSuchMethodException : " + actionParam);
       throw new InvalidCdfOperationException(ex);
     }
     catch (Exception ex)
@@ -118,12 +142,19 @@ public class CommentsEngine
 
     CommentEntry commentEntry = new CommentEntry(page, user, comment);
 
-    Session session = getSession();
-
-    session.beginTransaction();
-    session.save(commentEntry);
-    session.flush();
-    session.getTransaction().commit();
+    Session session = PluginHibernateUtil.openSession();
+    try
+    {
+      session.beginTransaction();
+      session.save(commentEntry);
+      session.flush();
+      session.getTransaction().commit();
+    }
+    finally
+    {
+      PluginHibernateUtil.closeSession(session);
+    }
+    feed.publish(commentEntry);
 
     // Get it and build the tree
     JSONObject json = new JSONObject();
@@ -133,13 +164,21 @@ public class CommentsEngine
 
   }
 
+  /**
+   * Lists the active comments of a page, newest first.
+   * <p/>
+   * Pages are fetched by keyset: pass the "next" cursor of the previous
+   * response as "cursor" to get the following page, which costs the same no
+   * matter how deep it is. firstResult is still honoured when no cursor is
+   * given, for older callers.
+   */
   public JSONObject list(IParameterProvider requestParams, IPentahoSession userSession) throws JSONException, InvalidCdfOperationException, PluginHibernateException
   {
 
     logger.debug("Listing messages");
 
     String page = requestParams.getStringParameter("page", "");
-    String user = userSession.getName();
+    String cursor = requestParams.getStringParameter("cursor", "");
     int firstResult = Integer.parseInt(requestParams.getStringParameter("firstResult", "0"));
     int maxResults = Integer.parseInt(requestParams.getStringParameter("maxResults", "20"));
 
@@ -151,16 +190,38 @@ public class CommentsEngine
 
     }
 
-    logger.debug("Adding comment");
-
-
-    Session session = getSession();
-
-    Query query = session.getNamedQuery("org.pentaho.cdf.comments.CommentEntry.getCommentsByPage").setString("page", page);
-    query.setFirstResult(firstResult);
-    query.setMaxResults(maxResults);
+    // Taken before reading, so that a change made while we read is still reported
+    String since = feed.getToken();
+    List<CommentEntry> comments;
+    Session session = PluginHibernateUtil.openSession();
+    try
+    {
+      Query query;
+      if (cursor != null && cursor.length() > 0)
+      {
+        query = session.getNamedQuery("org.pentaho.cdf.comments.CommentEntry.getCommentsByPageBefore").setString("page", page);
+        setCursor(query, cursor);
+      }
+      else
+      {
+        query = session.getNamedQuery("org.pentaho.cdf.comments.CommentEntry.getCommentsByPage").setString("page", page);
+        query.setFirstResult(firstResult);
+      }
+      // One more than asked for, so we know if there's a next page
+      query.setMaxResults(maxResults + 1);
+
+      comments = query.list();
+    }
+    finally
+    {
+      PluginHibernateUtil.closeSession(session);
+    }
 
-    List<CommentEntry> comments = query.list();
+    boolean hasMore = comments.size() > maxResults;
+    if (hasMore)
+    {
+      comments = comments.subList(0, maxResults);
+    }
 
     JSONArray jsonArray = new JSONArray();
     for (CommentEntry comment : comments)
@@ -173,11 +234,81 @@ public class CommentsEngine
     // Get it and build the tree
     JSONObject json = new JSONObject();
     json.put("result", jsonArray);
+    json.put("next", hasMore ? getCursor(comments.get(comments.size() - 1)) : JSONObject.NULL);
+    json.put("since", since);
+
+    return json;
+
+  }
 
+  /**
+   * Returns the comments of a page added, deleted or archived after the
+   * "since" token given by list or by a previous call, oldest first, and the
+   * token to use next time. When the token is too old (or from before a
+   * restart) "reset" is true and the page must be listed again.
+   * <p/>
+   * With a "wait" parameter (milliseconds, capped by
+   * settings/comments/long-poll-timeout) the request is held until something
+   * changes or the time is up.
+   */
+  public JSONObject since(IParameterProvider requestParams, IPentahoSession userSession) throws JSONException, InvalidCdfOperationException, InterruptedException
+  {
+
+    String page = requestParams.getStringParameter("page", "");
+    String since = requestParams.getStringParameter("since", "");
+    long wait = Math.min(Long.parseLong(requestParams.getStringParameter("wait", "0")), maxWait);
+
+    if (page == null || page.equals(""))
+    {
+
+      logger.error("Parameter 'page' is not optional");
+      throw new InvalidCdfOperationException("Page cannot be null");
+
+    }
+
+    CommentsFeed.Changes changes = feed.getChanges(page, since, wait);
+
+    JSONArray jsonArray = new JSONArray();
+    for (CommentEntry comment : changes.comments)
+    {
+      JSONObject commentJson = commentToJson(comment, userSession);
+      commentJson.put("deleted", comment.isDeleted());
+      commentJson.put("archived", comment.isArchived());
+      jsonArray.put(commentJson);
+    }
+
+    JSONObject json = new JSONObject();
+    json.put("result", jsonArray);
+    json.put("since", changes.since);
+    json.put("reset", changes.reset);
     return json;
 
   }
 
+  /**
+   * A cursor points right after the given comment, in (createdDate, commentId)
+   * order: "&lt;created millis&gt;:&lt;commentId&gt;".
+   */
+  private String getCursor(CommentEntry comment)
+  {
+    return comment.getCreatedDate().getTime() + ":" + comment.getCommentId();
+  }
+
+  private void setCursor(Query query, String cursor) throws InvalidCdfOperationException
+  {
+    int separator = cursor.indexOf(':');
+    try
+    {
+      query.setTimestamp("createdDate", new Date(Long.parseLong(cursor.substring(0, separator))));
+      query.setInteger("commentId", Integer.parseInt(cursor.substring(separator + 1)));
+    }
+    catch (RuntimeException ex)
+    {
+      logger.error("Invalid comments cursor: " + cursor);
+      throw new InvalidCdfOperationException("Invalid cursor " + cursor);
+    }
+  }
+
   public JSONObject delete(IParameterProvider requestParams, IPentahoSession userSession) throws JSONException, InvalidCdfOperationException, PluginHibernateException
   {
 
@@ -196,26 +327,220 @@ public class CommentsEngine
 
   }
 
-  private JSONObject changeCommentStatus(int operationType, int commentId, IPentahoSession userSession) throws JSONException, PluginHibernateException
+  /**
+   * Runs a list of operations in a single transaction. "operations" is a JSON
+   * array of {"action": "add", "page": ..., "comment": ...} and
+   * {"action": "archive"|"delete", "commentId": ...} objects. Status changes
+   * are applied with one bulk update per kind.
+   * <p/>
+   * The result has one entry per operation, in the same order: {"result":
+   * comment} or {"error": message} for an operation that couldn't be applied.
+   * Database errors roll back the whole batch.
+   */
+  @SuppressWarnings("unchecked")
+  public JSONObject batch(IParameterProvider requestParams, IPentahoSession userSession) throws JSONException, InvalidCdfOperationException, PluginHibernateException
   {
 
+    String user = userSession.getName();
+    JSONArray operations = new JSONArray(requestParams.getStringParameter("operations", "[]"));
+    if (operations.length() > MAX_BATCH_SIZE)
+    {
+      logger.error("Too many operations in comments batch: " + operations.length());
+      throw new InvalidCdfOperationException("A batch can't have more than " + MAX_BATCH_SIZE + " operations");
+    }
+
+    logger.debug("Running " + operations.length() + " comment operations");
 
-    Session session = getSession();
-    session.beginTransaction();
+    // Sort them out first, so each kind goes to the database in one go
+    Object[] items = new Object[operations.length()];
+    List<CommentEntry> added = new ArrayList<CommentEntry>();
+    List<Integer> archived = new ArrayList<Integer>();
+    List<Integer> deleted = new ArrayList<Integer>();
+    for (int i = 0; i < operations.length(); i++)
+    {
+      JSONObject operation = operations.optJSONObject(i);
+      if (operation == null)
+      {
+        items[i] = "Operations must be objects";
+        continue;
+      }
+      String action = operation.optString("action");
+      if ("add".equals(action))
+      {
+        String page = operation.optString("page");
+        String comment = operation.optString("comment");
+        if (page.length() == 0 || comment.length() == 0)
+        {
+          items[i] = "Parameters 'page' and 'comment' are not optional";
+          continue;
+        }
+        CommentEntry commentEntry = new CommentEntry(page, user, comment);
+        added.add(commentEntry);
+        items[i] = commentEntry;
+      }
+      else if ("archive".equals(action) || "delete".equals(action))
+      {
+        if (!operation.has("commentId"))
+        {
+          items[i] = "Parameter 'commentId' is not optional";
+          continue;
+        }
+        Integer commentId;
+        try
+        {
+          commentId = Integer.valueOf(operation.getInt("commentId"));
+        }
+        catch (JSONException ex)
+        {
+          items[i] = "Parameter 'commentId' must be a number";
+          continue;
+        }
+        if ("archive".equals(action))
+        {
+          archived.add(commentId);
+        }
+        else
+        {
+          deleted.add(commentId);
+        }
+        items[i] = commentId;
+      }
+      else
+      {
+        items[i] = "Unknown action " + action;
+      }
+    }
 
-    CommentEntry comment = (CommentEntry) session.load(CommentEntry.class, commentId);
+    Map<Integer, CommentEntry> changed = new HashMap<Integer, CommentEntry>();
+    Session session = PluginHibernateUtil.openSession();
+    try
+    {
+      session.beginTransaction();
+
+      for (CommentEntry commentEntry : added)
+      {
+        session.save(commentEntry);
+      }
+      session.flush();
+
+      List<Integer> commentIds = new ArrayList<Integer>(archived);
+      commentIds.addAll(deleted);
+      if (!commentIds.isEmpty())
+      {
+        List<CommentEntry> comments = session.getNamedQuery("org.pentaho.cdf.comments.CommentEntry.getCommentsByIds").setParameterList("commentIds", commentIds).list();
+        for (CommentEntry comment : comments)
+        {
+          changed.put(Integer.valueOf(comment.getCommentId()), comment);
+        }
+      }
+      if (!archived.isEmpty())
+      {
+        session.getNamedQuery("org.pentaho.cdf.comments.CommentEntry.archiveComments").setParameterList("commentIds", archived).executeUpdate();
+      }
+      if (!deleted.isEmpty())
+      {
+        session.getNamedQuery("org.pentaho.cdf.comments.CommentEntry.deleteComments").setParameterList("commentIds", deleted).executeUpdate();
+      }
+
+      session.getTransaction().commit();
+    }
+    finally
+    {
+      PluginHibernateUtil.closeSession(session);
+    }
 
-    if (operationType == ARCHIVE_OPERATION)
+    // The bulk updates didn't touch the instances we loaded, which are detached by now
+    for (Integer commentId : archived)
+    {
+      CommentEntry comment = changed.get(commentId);
+      if (comment != null)
+      {
+        comment.setArchived(true);
+      }
+    }
+    for (Integer commentId : deleted)
+    {
+      CommentEntry comment = changed.get(commentId);
+      if (comment != null)
+      {
+        comment.setDeleted(true);
+      }
+    }
+    for (CommentEntry commentEntry : added)
     {
-      comment.setArchived(true);
+      feed.publish(commentEntry);
     }
-    else if (operationType == DELETE_OPERATION)
+    for (CommentEntry comment : changed.values())
     {
-      comment.setDeleted(true);
+      feed.publish(comment);
     }
 
-    session.save(comment);
-    session.getTransaction().commit();
+    JSONArray results = new JSONArray();
+    for (Object item : items)
+    {
+      JSONObject result = new JSONObject();
+      if (item instanceof CommentEntry)
+      {
+        result.put("result", commentToJson((CommentEntry) item, userSession));
+      }
+      else if (item instanceof Integer)
+      {
+        CommentEntry comment = changed.get(item);
+        if (comment != null)
+        {
+          result.put("result", commentToJson(comment, userSession));
+        }
+        else
+        {
+          result.put("error", "Comment " + item + " not found");
+        }
+      }
+      else
+      {
+        result.put("error", item);
+      }
+      results.put(result);
+    }
+
+    JSONObject json = new JSONObject();
+    json.put("result", results);
+    return json;
+
+  }
+
+  private JSONObject changeCommentStatus(int operationType, int commentId, IPentahoSession userSession) throws JSONException, InvalidCdfOperationException, PluginHibernateException
+  {
+
+
+    CommentEntry comment;
+    Session session = PluginHibernateUtil.openSession();
+    try
+    {
+      session.beginTransaction();
+
+      comment = (CommentEntry) session.get(CommentEntry.class, commentId);
+      if (comment == null)
+      {
+        throw new InvalidCdfOperationException("Comment " + commentId + " not found");
+      }
+
+      if (operationType == ARCHIVE_OPERATION)
+      {
+        comment.setArchived(true);
+      }
+      else if (operationType == DELETE_OPERATION)
+      {
+        comment.setDeleted(true);
+      }
+
+      session.save(comment);
+      session.getTransaction().commit();
+    }
+    finally
+    {
+      PluginHibernateUtil.closeSession(session);
+    }
+    feed.publish(comment);
 
     // Get it and build the tree
     JSONObject json = new JSONObject();
@@ -238,13 +563,6 @@ public class CommentsEngine
     return commentJson;
   }
 
-  private Session getSession() throws PluginHibernateException
-  {
-
-    return PluginHibernateUtil.getSession();
-
-  }
-
   private void initialize() throws PluginHibernateException
   {
 
@@ -260,6 +578,26 @@ public class CommentsEngine
 
   }
 
+  private void initializeFeed()
+  {
+
+    IPluginResourceLoader resLoader = PentahoSystem.get(IPluginResourceLoader.class, null);
+    int maxWaiters = DEFAULT_MAX_WAITERS;
+    maxWait = DEFAULT_MAX_WAIT;
+    String setting = resLoader.getPluginSetting(CommentsEngine.class, "settings/comments/long-poll-waiters");
+    if (setting != null && setting.trim().length() > 0)
+    {
+      maxWaiters = Integer.parseInt(setting.trim());
+    }
+    setting = resLoader.getPluginSetting(CommentsEngine.class, "settings/comments/long-poll-timeout");
+    if (setting != null && setting.trim().length() > 0)
+    {
+      maxWait = Long.parseLong(setting.trim());
+    }
+    feed = new CommentsFeed(maxWaiters);
+
+  }
+
   private String getExceptionDescription(Exception ex)
   {
     return ex.getCause().getClass().getName() + " - " + ex.getMessage();
@@ -0,0 +1,237 @@
+package org.pentaho.cdf.comments;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In memory feed of the recent changes (adds, deletes, archives) of each
+ * comments page, so that open dashboards can ask for what changed since their
+ * last look instead of reading the whole page again.
+ * <p/>
+ * Positions in the feed are given to clients as "since" tokens:
+ * "&lt;epoch&gt;:&lt;sequence&gt;". The epoch changes when the server restarts,
+ * and only the last MAX_CHANGES changes of a page are kept; a token that can't
+ * be answered from the feed gets a reset, meaning the client must list the
+ * page again.
+ * <p/>
+ * Callers may also wait for a change. Servlet 2.4 has no asynchronous
+ * requests, so a waiting request holds its thread: the number of waiters is
+ * bounded and requests over the limit are answered straight away.
+ * <p/>
+ * A page only gets a feed when a comment of it changes, so asking about
+ * pages doesn't grow the feed.
+ */
+class CommentsFeed
+{
+
+  private static final int MAX_CHANGES = 100;
+  private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+  private final AtomicLong sequence = new AtomicLong();
+  private final ConcurrentHashMap<String, PageFeed> pages = new ConcurrentHashMap<String, PageFeed>();
+  private final Semaphore waiters;
+  /* Waiters on pages without a feed sleep on it, it's notified when one is created */
+  private final Object newPages = new Object();
+
+  /**
+   * Comments changed after a given token.
+   */
+  static class Changes
+  {
+
+    final List<CommentEntry> comments;
+    final String since;
+    final boolean reset;
+
+    Changes(List<CommentEntry> comments, String since, boolean reset)
+    {
+      this.comments = comments;
+      this.since = since;
+      this.reset = reset;
+    }
+  }
+
+  /**
+   * Changes of a single page, oldest first. Also the monitor waiters of that
+   * page sleep on.
+   */
+  private static class PageFeed
+  {
+
+    final LinkedList<Change> changes = new LinkedList<Change>();
+    long lastSequence;
+    /* Changes older than this one were dropped */
+    long firstSequence;
+  }
+
+  private static class Change
+  {
+
+    final long sequence;
+    final CommentEntry comment;
+
+    Change(long sequence, CommentEntry comment)
+    {
+      this.sequence = sequence;
+      this.comment = comment;
+    }
+  }
+
+  CommentsFeed(int maxWaiters)
+  {
+    this.waiters = new Semaphore(maxWaiters);
+  }
+
+  /**
+   * Records a comment that was just added or changed and wakes up whoever is
+   * waiting on its page.
+   */
+  void publish(CommentEntry comment)
+  {
+    PageFeed feed = getPageFeed(comment.getPage());
+    synchronized (feed)
+    {
+      long current = sequence.incrementAndGet();
+      feed.changes.add(new Change(current, comment));
+      if (feed.changes.size() > MAX_CHANGES)
+      {
+        feed.firstSequence = feed.changes.removeFirst().sequence;
+      }
+      feed.lastSequence = current;
+      feed.notifyAll();
+    }
+  }
+
+  /**
+   * @return the token for "now", to be used by a client that just listed the page
+   */
+  String getToken()
+  {
+    return epoch + ":" + sequence.get();
+  }
+
+  /**
+   * Returns the changes of a page after the given token, waiting up to
+   * timeout milliseconds for one to happen if there are none yet.
+   */
+  Changes getChanges(String page, String since, long timeout) throws InterruptedException
+  {
+
+    long after = parseToken(since);
+    if (after < 0)
+    {
+      return new Changes(new ArrayList<CommentEntry>(), getToken(), true);
+    }
+
+    long deadline = System.currentTimeMillis() + timeout;
+    // Read the token before looking for the feed: a change published meanwhile is newer than it
+    String noChanges = getToken();
+    PageFeed feed = pages.get(page);
+    if (feed == null && timeout > 0 && waiters.tryAcquire())
+    {
+      try
+      {
+        synchronized (newPages)
+        {
+          long remaining = timeout;
+          while ((feed = pages.get(page)) == null && remaining > 0)
+          {
+            newPages.wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+          }
+        }
+      }
+      finally
+      {
+        waiters.release();
+      }
+    }
+    if (feed == null)
+    {
+      // Nothing ever changed on this page
+      return new Changes(new ArrayList<CommentEntry>(), noChanges, false);
+    }
+
+    synchronized (feed)
+    {
+      if (feed.lastSequence <= after && deadline > System.currentTimeMillis() && waiters.tryAcquire())
+      {
+        try
+        {
+          long remaining = deadline - System.currentTimeMillis();
+          while (feed.lastSequence <= after && remaining > 0)
+          {
+            feed.wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+          }
+        }
+        finally
+        {
+          waiters.release();
+        }
+      }
+
+      // Read the token before collecting: anything published later is newer than it
+      String token = getToken();
+      if (after < feed.firstSequence)
+      {
+        return new Changes(new ArrayList<CommentEntry>(), token, true);
+      }
+      List<CommentEntry> comments = new ArrayList<CommentEntry>();
+      for (Change change : feed.changes)
+      {
+        if (change.sequence > after)
+        {
+          comments.add(change.comment);
+        }
+      }
+      return new Changes(comments, token, false);
+    }
+  }
+
+  /**
+   * @return the sequence in the token, or -1 if it's not one of ours
+   */
+  private long parseToken(String since)
+  {
+    int separator = since != null ? since.indexOf(':') : -1;
+    if (separator < 0 || !epoch.equals(since.substring(0, separator)))
+    {
+      return -1;
+    }
+    try
+    {
+      long after = Long.parseLong(since.substring(separator + 1));
+      return after <= sequence.get() ? after : -1;
+    }
+    catch (NumberFormatException ex)
+    {
+      return -1;
+    }
+  }
+
+  /**
+   * @return the feed of the page, created if it has none yet
+   */
+  private PageFeed getPageFeed(String page)
+  {
+    PageFeed feed = pages.get(page);
+    if (feed == null)
+    {
+      PageFeed created = new PageFeed();
+      feed = pages.putIfAbsent(page, created);
+      if (feed == null)
+      {
+        feed = created;
+        synchronized (newPages)
+        {
+          newPages.notifyAll();
+        }
+      }
+    }
+    return feed;
+  }
+}
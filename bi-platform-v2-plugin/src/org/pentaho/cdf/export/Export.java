@@ -16,13 +16,41 @@ import org.pentaho.cdf.Messages;
 import org.pentaho.platform.engine.core.system.PentahoBase;
 import org.pentaho.platform.web.http.HttpOutputHandler;
 
+/**
+ * Base of the export formats. A result set is fed in with metadata(), then
+ * values() once per row and end(), either by exportFile(JSONObject) or,
+ * without ever holding the whole result, by a ResultSetParser.
+ * <p/>
+ * Metadata entries can be column names, or {"colName", "colType"} objects,
+ * whose type lets the formats tell numbers from text without guessing.
+ * <p/>
+ * The layout is the one exports always had: a header row with an empty first
+ * cell followed by the column names, then the rows, each one cell wider than
+ * the first row's values.
+ */
 @SuppressWarnings("serial")
 public abstract class Export extends PentahoBase implements IExport
 {
 
   protected static final Log logger = LogFactory.getLog(Export.class);
+  private static final String NO_RESULTS = "No results Returned";
+  /* Members of a metadata entry, when it's an object rather than just a name */
+  static final String COLUMN_NAME = "colName";
+  static final String COLUMN_TYPE = "colType";
   protected HttpOutputHandler httpHandler = null;
   protected OutputStream outputStream = null;
+  protected static final int TYPE_UNKNOWN = 0;
+  protected static final int TYPE_NUMERIC = 1;
+  protected static final int TYPE_STRING = 2;
+  private static final String[] NUMERIC_TYPES =
+  {
+    "numeric", "number", "integer", "int", "long", "double", "float", "bigdecimal", "biginteger"
+  };
+  private String[] metadata = new String[0];
+  private int[] columnTypes = new int[0];
+  private int nCols = -1;
+  /* Read by other threads to report progress */
+  private volatile int rowIndex;
 
   public Export(final OutputStream out) throws IOException
   {
@@ -46,48 +74,246 @@ public abstract class Export extends PentahoBase implements IExport
       JSONArray metaData = resultSet.getJSONArray("metadata");
       JSONArray values = resultSet.getJSONArray("values");
 
-      String[][] results = new String[1][1];
-      results[0][0] = "No results Returned";
-
-      int nCols = 0, nRows = 0;
-      if (metaData.length() > 0 && (nRows = values.length()) > 0 && values.length() > 0 && (nCols = values.getJSONArray(0).length()) > 0)
+      String[] columns = new String[metaData.length()];
+      String[] types = new String[metaData.length()];
+      for (int i = 0; i < columns.length; i++)
       {
-
-        results = new String[nRows + 1][nCols + 1];
-        results[0][0] = "";
-        for (int i = 0; i < metaData.length(); i++)
+        JSONObject column = metaData.optJSONObject(i);
+        if (column != null)
         {
-          results[0][i + 1] = metaData.getString(i);
+          columns[i] = column.optString(COLUMN_NAME);
+          types[i] = column.optString(COLUMN_TYPE, null);
         }
-        for (int i = 0; i < nRows; i++)
+        else
         {
-          JSONArray row = values.getJSONArray(i);
-          for (int j = 0; j < nCols; j++)
-          {
-            results[i + 1][j] = row.getString(j);
-          }
+          columns[i] = metaData.getString(i);
         }
       }
+      metadata(columns, types);
 
-      export(results);
+      for (int i = 0; i < values.length(); i++)
+      {
+        JSONArray row = values.getJSONArray(i);
+        String[] cells = new String[row.length()];
+        for (int j = 0; j < cells.length; j++)
+        {
+          cells[j] = row.getString(j);
+        }
+        values(cells);
+      }
+
+      end();
 
     }
     catch (JSONException e)
     {
       logger.error(Messages.getErrorString("CdfExpor.ERROR_0001_PARSING_RESULTS"));
     }
+    catch (IOException e)
+    {
+      logger.error(Messages.getErrorString("CdfExpor.ERROR_0002_WRITING_RESULTS"), e);
+    }
   }
 
-  public boolean isDouble(String obj)
+  /**
+   * Exports a whole result set that is already in memory, row 0 being the header.
+   */
+  public void export(String[][] resultSet)
   {
     try
     {
-      Double.parseDouble(obj);
+      startExport(resultSet.length > 0 ? resultSet[0].length : 0);
+      for (int i = 0; i < resultSet.length; i++)
+      {
+        exportRow(i, resultSet[i]);
+      }
+      finishExport();
+    }
+    catch (IOException e)
+    {
+      logger.error(Messages.getErrorString("CdfExpor.ERROR_0002_WRITING_RESULTS"), e);
+    }
+  }
+
+  /**
+   * Column names of the result set, before any row.
+   */
+  public void metadata(String[] columnNames)
+  {
+    metadata(columnNames, null);
+  }
+
+  /**
+   * Column names and types of the result set, before any row. Types are the
+   * ones in the result set metadata (e.g. "Numeric", "String"), null when
+   * unknown.
+   */
+  public void metadata(String[] columnNames, String[] types)
+  {
+    this.metadata = columnNames;
+    this.columnTypes = new int[columnNames.length];
+    for (int i = 0; types != null && i < types.length && i < columnTypes.length; i++)
+    {
+      columnTypes[i] = getType(types[i]);
+    }
+  }
+
+  /**
+   * @return how many value columns the rows have, 0 if there are no results
+   */
+  protected int getColumnCount()
+  {
+    return Math.max(nCols, 0);
+  }
+
+  /**
+   * @return the name of the given value column
+   */
+  protected String getColumnLabel(int column)
+  {
+    return column < metadata.length && metadata[column] != null ? metadata[column] : "";
+  }
+
+  /**
+   * @return how many result set rows were exported so far, header excluded
+   */
+  public int getRowCount()
+  {
+    return Math.max(rowIndex - 1, 0);
+  }
+
+  /**
+   * @return TYPE_NUMERIC, TYPE_STRING or TYPE_UNKNOWN for the given value column
+   */
+  protected int getColumnType(int column)
+  {
+    return column < columnTypes.length ? columnTypes[column] : TYPE_UNKNOWN;
+  }
+
+  private static int getType(String type)
+  {
+    if (type == null || type.length() == 0)
+    {
+      return TYPE_UNKNOWN;
+    }
+    for (String numeric : NUMERIC_TYPES)
+    {
+      if (numeric.equalsIgnoreCase(type))
+      {
+        return TYPE_NUMERIC;
+      }
+    }
+    return TYPE_STRING;
+  }
+
+  /**
+   * One row of the result set. The first one decides how many columns there
+   * are; longer rows are cut to that width.
+   */
+  public void values(String[] row) throws IOException
+  {
+
+    if (nCols < 0)
+    {
+      nCols = row.length;
+      if (metadata.length == 0 || nCols == 0)
+      {
+        // Nothing worth exporting, end() will say so
+        nCols = 0;
+        return;
+      }
+      startExport(nCols + 1);
+      String[] header = new String[nCols + 1];
+      header[0] = "";
+      System.arraycopy(metadata, 0, header, 1, Math.min(metadata.length, nCols));
+      exportRow(rowIndex++, header);
+    }
+    else if (nCols == 0)
+    {
+      return;
+    }
+
+    String[] cells = new String[nCols + 1];
+    System.arraycopy(row, 0, cells, 0, Math.min(row.length, nCols));
+    exportRow(rowIndex++, cells);
+  }
+
+  /**
+   * No more rows.
+   */
+  public void end() throws IOException
+  {
+    if (nCols <= 0)
+    {
+      startExport(1);
+      exportRow(0, new String[]
+      {
+        NO_RESULTS
+      });
+    }
+    finishExport();
+  }
+
+  public boolean isDouble(String obj)
+  {
+    return isNumber(obj);
+  }
+
+  /**
+   * True for plain decimal numbers: an optional sign, digits with an optional
+   * fraction, and an optional exponent. Checked without parsing, so that
+   * telling text from numbers doesn't cost an exception per text cell.
+   */
+  public static boolean isNumber(String value)
+  {
+    int length = value != null ? value.length() : 0;
+    int i = 0;
+    if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+'))
+    {
+      i++;
+    }
+    int digits = 0;
+    while (i < length && isDigit(value.charAt(i)))
+    {
+      i++;
+      digits++;
+    }
+    if (i < length && value.charAt(i) == '.')
+    {
+      i++;
+      while (i < length && isDigit(value.charAt(i)))
+      {
+        i++;
+        digits++;
+      }
     }
-    catch (NumberFormatException e)
+    if (digits == 0)
     {
       return false;
     }
-    return true;
+    if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E'))
+    {
+      i++;
+      if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+'))
+      {
+        i++;
+      }
+      int exponentDigits = 0;
+      while (i < length && isDigit(value.charAt(i)))
+      {
+        i++;
+        exponentDigits++;
+      }
+      if (exponentDigits == 0)
+      {
+        return false;
+      }
+    }
+    return i == length;
+  }
+
+  private static boolean isDigit(char c)
+  {
+    return c >= '0' && c <= '9';
   }
 }
@@ -4,69 +4,88 @@
  */
 package org.pentaho.cdf.export;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import org.pentaho.cdf.Messages;
 
+/**
+ * CSV export. Text is always quoted, with quotes doubled as in RFC 4180;
+ * numbers are written as they came, unquoted. Values of columns the metadata
+ * says are text are never taken for numbers.
+ */
 @SuppressWarnings("serial")
 public class ExportCSV extends Export implements IExport
 {
 
   private static final String extensionFile = ".csv";
+  private static final int BUFFER_SIZE = 65536;
+  private Writer writer;
 
   public ExportCSV(final OutputStream out) throws IOException
   {
     super(out);
   }
 
-  public void export(String[][] resultSet)
+  public void startExport(int nCols) throws IOException
   {
+    writer = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"), BUFFER_SIZE);
+  }
 
-    PrintWriter pw = new PrintWriter(outputStream);
+  public void exportRow(int rowIndex, String[] vs) throws IOException
+  {
 
-    try
+    for (int j = 0; j < vs.length; j++)
     {
-
-      for (int i = 0; i < resultSet.length; i++)
+      String value = vs[j];
+      if (value != null)
       {
-        String[] vs = resultSet[i];
-        for (int j = 0; j < vs.length; j++)
+        // The header is all text, and so are text columns even if they look like numbers
+        if (rowIndex > 0 && getColumnType(j) != TYPE_STRING && isNumber(value))
         {
-          String value = vs[j];
-          if (value == null)
-          {
-            break;
-          }
-          //pw.append(isDouble(value) ? new Double(value).toString(): vs[j]);
-          if (isDouble(value))
-          {
-            pw.append(new Double(value).toString());
-          }
-          else
-          {
-            String aux = value.replaceAll("\"", "\\\\\"");
-            pw.append('\"' + aux + '\"');
-          }
-          if (j + 1 < vs.length)
-          {
-            pw.append(',');
-          }
+          writer.write(value);
+        }
+        else
+        {
+          writeQuoted(value);
         }
-        pw.append('\n');
       }
+      if (j + 1 < vs.length)
+      {
+        writer.write(',');
+      }
+    }
+    writer.write('\n');
+  }
 
-      pw.flush();
-
+  public void finishExport() throws IOException
+  {
+    try
+    {
+      writer.flush();
     }
-    catch (Exception e)
+    catch (IOException e)
     {
       logger.error(Messages.getErrorString("CdfExportCSV.ERROR_0001_BUILDING_CSV"));
+      throw e;
     }
-    finally
+  }
+
+  private void writeQuoted(String value) throws IOException
+  {
+    writer.write('"');
+    int start = 0;
+    int quote;
+    while ((quote = value.indexOf('"', start)) >= 0)
     {
-      pw.close();
+      writer.write(value, start, quote + 1 - start);
+      writer.write('"');
+      start = quote + 1;
     }
+    writer.write(value, start, value.length() - start);
+    writer.write('"');
   }
 
   public String getExtension()
@@ -0,0 +1,163 @@
+package org.pentaho.cdf.export;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Compact typed binary export, organized in column blocks so it can be read
+ * straight into columnar structures (arrays, data frames) without parsing
+ * text. Rows are gathered BLOCK_SIZE at a time, so memory is bounded by one
+ * block whatever the size of the result set.
+ * <p/>
+ * Layout, all integers big endian (java.io.DataOutput):
+ * <pre>
+ * "CDFB" version:byte(1)
+ * columns:int, then for each column: name as int length + UTF-8 bytes
+ * blocks, each one:
+ *   rows:int (&gt; 0)
+ *   for each column:
+ *     type:byte, 0 = text, 1 = double
+ *     null bitmap: (rows + 7) / 8 bytes, bit (row % 8) of byte (row / 8) set when null
+ *     values of the non null rows:
+ *       double: 8 byte IEEE 754 each
+ *       text: int length + UTF-8 bytes each
+ * end: rows:int = 0
+ * </pre>
+ * A column is written as doubles in a block when it isn't typed as text and
+ * all its values in the block are numbers or null.
+ */
+@SuppressWarnings("serial")
+public class ExportColumnar extends Export implements IExport
+{
+
+  private static final String extensionFile = ".cdfb";
+  private static final byte[] MAGIC =
+  {
+    'C', 'D', 'F', 'B'
+  };
+  private static final byte VERSION = 1;
+  private static final byte TYPE_TEXT = 0;
+  private static final byte TYPE_DOUBLE = 1;
+  private static final int BLOCK_SIZE = 4096;
+  private static final int BUFFER_SIZE = 65536;
+  private DataOutputStream data;
+  private String[][] block;
+  private int rows;
+
+  public ExportColumnar(final OutputStream out) throws IOException
+  {
+    super(out);
+  }
+
+  public void startExport(int nCols) throws IOException
+  {
+    data = new DataOutputStream(new BufferedOutputStream(outputStream, BUFFER_SIZE));
+    data.write(MAGIC);
+    data.writeByte(VERSION);
+    int columns = getColumnCount();
+    data.writeInt(columns);
+    for (int j = 0; j < columns; j++)
+    {
+      writeText(getColumnLabel(j));
+    }
+    block = new String[columns][BLOCK_SIZE];
+  }
+
+  public void exportRow(int rowIndex, String[] vs) throws IOException
+  {
+
+    // The column names are in the header
+    if (rowIndex == 0)
+    {
+      return;
+    }
+
+    for (int j = 0; j < block.length; j++)
+    {
+      block[j][rows] = j < vs.length ? vs[j] : null;
+    }
+    if (++rows == BLOCK_SIZE)
+    {
+      writeBlock();
+    }
+  }
+
+  public void finishExport() throws IOException
+  {
+    if (rows > 0)
+    {
+      writeBlock();
+    }
+    data.writeInt(0);
+    data.flush();
+  }
+
+  private void writeBlock() throws IOException
+  {
+
+    data.writeInt(rows);
+    byte[] nulls = new byte[(rows + 7) / 8];
+    for (int j = 0; j < block.length; j++)
+    {
+      String[] column = block[j];
+      boolean numeric = getColumnType(j) != TYPE_STRING;
+      for (int i = 0; i < rows && numeric; i++)
+      {
+        numeric = isNull(column[i], true) || isNumber(column[i]);
+      }
+
+      Arrays.fill(nulls, (byte) 0);
+      for (int i = 0; i < rows; i++)
+      {
+        if (isNull(column[i], numeric))
+        {
+          nulls[i / 8] |= 1 << (i % 8);
+        }
+      }
+
+      data.writeByte(numeric ? TYPE_DOUBLE : TYPE_TEXT);
+      data.write(nulls);
+      for (int i = 0; i < rows; i++)
+      {
+        if (isNull(column[i], numeric))
+        {
+          continue;
+        }
+        if (numeric)
+        {
+          data.writeDouble(Double.parseDouble(column[i]));
+        }
+        else
+        {
+          writeText(column[i]);
+        }
+        column[i] = null;
+      }
+    }
+    rows = 0;
+  }
+
+  /**
+   * Result sets give nulls as "null": that's a null in number columns, but
+   * could be actual text in text ones.
+   */
+  private boolean isNull(String value, boolean numeric)
+  {
+    return value == null || (numeric && "null".equals(value));
+  }
+
+  private void writeText(String value) throws IOException
+  {
+    byte[] bytes = value.getBytes("UTF-8");
+    data.writeInt(bytes.length);
+    data.write(bytes);
+  }
+
+  public String getExtension()
+  {
+    return extensionFile;
+  }
+}
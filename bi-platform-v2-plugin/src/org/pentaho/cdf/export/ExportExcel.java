@@ -23,55 +23,53 @@ public class ExportExcel extends Export implements IExport {
   WritableCellFormat rcs;
   WritableCellFormat csn;
   public static final String extensionFile = ".xls";
+  private WritableWorkbook wb;
+  private WritableSheet sheet;
+  private boolean swapRows;
 
   public ExportExcel(final OutputStream out) throws IOException {
     super(out);
   }
 
-  public void export(String[][] resultSet) {
+  public void startExport(int nCols) throws IOException {
 
+    wb = Workbook.createWorkbook(outputStream);
+    sheet = wb.createSheet("Sheet", 0);
+    try {
+      setCellsStyles();
+    } catch (WriteException e) {
+      throw writeError(e);
+    }
+    swapRows = nCols > 256 ? true : false;
+  }
 
-    WritableWorkbook wb = null;
+  public void exportRow(int i, String[] vs) throws IOException {
 
     try {
-
-      wb = Workbook.createWorkbook(outputStream);
-      WritableSheet sheet = wb.createSheet("Sheet", 0);
-      setCellsStyles();
       WritableCellFormat cf;
-
-      if (resultSet.length > 0) {
-
-        boolean swapRows = resultSet[0].length > 256 ? true : false;
-
-        for (int i = 0; i < resultSet.length; i++) {
-          String[] vs = resultSet[i];
-          for (int j = 0; j < vs.length; j++) {
-            cf = i == 0 ? hcs : j != 0 ? cs : (i % 2 != 0 ? hcs : rcs);
-            String value = vs[j];
-            if (value == null) {
-              break;
-            }
-            if (isDouble(value)) {
-              Number number = new Number(swapRows ? i : j, swapRows ? j : i, Double.parseDouble(value), csn);
-              sheet.addCell(number);
-            } else {
-              Label label = new Label(swapRows ? i : j, swapRows ? j : i, value, cf);
-              sheet.addCell(label);
-            }
-          }
+      for (int j = 0; j < vs.length; j++) {
+        cf = i == 0 ? hcs : j != 0 ? cs : (i % 2 != 0 ? hcs : rcs);
+        String value = vs[j];
+        if (value == null) {
+          break;
+        }
+        if (isDouble(value)) {
+          Number number = new Number(swapRows ? i : j, swapRows ? j : i, Double.parseDouble(value), csn);
+          sheet.addCell(number);
+        } else {
+          Label label = new Label(swapRows ? i : j, swapRows ? j : i, value, cf);
+          sheet.addCell(label);
         }
       }
+    } catch (WriteException e) {
+      throw writeError(e);
+    }
+  }
 
+  public void finishExport() throws IOException {
 
+    try {
       wb.write();
-
-    } catch (IOException e) {
-      logger.error(Messages.getErrorString("CdfExportExcel.ERROR_0001_OPENING_CLOSING_EXCEL"));
-    } catch (WriteException e) {
-      logger.error(Messages.getErrorString("CdfExportExcel.ERROR_0002_WRITING_EXCEL"));
-    } catch (Exception e) {
-      logger.error(Messages.getErrorString("CdfExportExcel.ERROR_0003_BUILDING_EXCEL"));
     } finally {
       try {
         wb.close();
@@ -81,6 +79,13 @@ public class ExportExcel extends Export implements IExport {
     }
   }
 
+  private IOException writeError(WriteException e) {
+    logger.error(Messages.getErrorString("CdfExportExcel.ERROR_0002_WRITING_EXCEL"));
+    IOException ioe = new IOException(e.getMessage());
+    ioe.initCause(e);
+    return ioe;
+  }
+
   private void setCellsStyles() throws WriteException {
 
     cs = new WritableCellFormat();
@@ -0,0 +1,113 @@
+package org.pentaho.cdf.export;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.json.JSONObject;
+
+/**
+ * Newline delimited JSON export: one {"column": value, ...} object per row,
+ * in UTF-8. Numbers are JSON numbers and nulls of non text columns are JSON
+ * nulls, so scripts get typed values without parsing text.
+ */
+@SuppressWarnings("serial")
+public class ExportNDJSON extends Export implements IExport
+{
+
+  private static final String extensionFile = ".ndjson";
+  private static final int BUFFER_SIZE = 65536;
+  private Writer writer;
+  private String[] keys;
+
+  public ExportNDJSON(final OutputStream out) throws IOException
+  {
+    super(out);
+  }
+
+  public void startExport(int nCols) throws IOException
+  {
+    writer = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"), BUFFER_SIZE);
+    keys = new String[getColumnCount()];
+    for (int j = 0; j < keys.length; j++)
+    {
+      keys[j] = JSONObject.quote(getColumnLabel(j));
+    }
+  }
+
+  public void exportRow(int rowIndex, String[] vs) throws IOException
+  {
+
+    // The column names are already in every object
+    if (rowIndex == 0)
+    {
+      return;
+    }
+
+    writer.write('{');
+    for (int j = 0; j < keys.length; j++)
+    {
+      if (j > 0)
+      {
+        writer.write(',');
+      }
+      writer.write(keys[j]);
+      writer.write(':');
+      String value = j < vs.length ? vs[j] : null;
+      boolean text = getColumnType(j) == TYPE_STRING;
+      if (value == null || (!text && "null".equals(value)))
+      {
+        writer.write("null");
+      }
+      else if (!text && isNumber(value))
+      {
+        writeNumber(value);
+      }
+      else
+      {
+        writer.write(JSONObject.quote(value));
+      }
+    }
+    writer.write("}\n");
+  }
+
+  /**
+   * Writes a number that passed isNumber, rewriting the forms JSON doesn't
+   * allow (such as "+1", ".5", "1." or "007").
+   */
+  private void writeNumber(String value) throws IOException
+  {
+    int start = value.charAt(0) == '-' ? 1 : 0;
+    int dot = value.indexOf('.');
+    boolean strict = start < value.length()
+            && Character.isDigit(value.charAt(start))
+            && !(value.charAt(start) == '0' && start + 1 < value.length() && Character.isDigit(value.charAt(start + 1)))
+            && (dot < 0 || (dot + 1 < value.length() && Character.isDigit(value.charAt(dot + 1))));
+    if (strict)
+    {
+      writer.write(value);
+      return;
+    }
+    double number = Double.parseDouble(value);
+    if (Double.isInfinite(number))
+    {
+      writer.write(JSONObject.quote(value));
+    }
+    else
+    {
+      writer.write(Double.toString(number));
+    }
+  }
+
+  public void finishExport() throws IOException
+  {
+    writer.flush();
+  }
+
+  public String getExtension()
+  {
+    return extensionFile;
+  }
+}
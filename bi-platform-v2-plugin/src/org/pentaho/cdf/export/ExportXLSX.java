@@ -0,0 +1,192 @@
+package org.pentaho.cdf.export;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.pentaho.cdf.Messages;
+
+/**
+ * Excel 2007 (.xlsx) export, written straight to the output: the SpreadsheetML
+ * parts go into a zip as they're produced and rows are written to the sheet as
+ * they arrive, so memory doesn't grow with the result set. Text goes in inline
+ * strings and the cell styles are fixed, so there's nothing to collect for a
+ * shared strings or styles table.
+ * <p/>
+ * Same look as ExportExcel, without the .xls limits of 65536 rows and 256
+ * columns.
+ */
+@SuppressWarnings("serial")
+public class ExportXLSX extends Export implements IExport {
+
+  public static final String extensionFile = ".xlsx";
+  private static final int BUFFER_SIZE = 65536;
+  /* Indexes of the cellXfs in STYLES */
+  private static final int STYLE_CELL = 1;
+  private static final int STYLE_HEADER = 2;
+  private static final int STYLE_ROW_HEADER = 3;
+  private static final int STYLE_NUMBER = 4;
+  private static final String CONTENT_TYPES = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+          + "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+          + "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>"
+          + "<Default Extension=\"xml\" ContentType=\"application/xml\"/>"
+          + "<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>"
+          + "<Override PartName=\"/xl/worksheets/sheet1.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>"
+          + "<Override PartName=\"/xl/styles.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.styles+xml\"/>"
+          + "</Types>";
+  private static final String RELS = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+          + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+          + "<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument\" Target=\"xl/workbook.xml\"/>"
+          + "</Relationships>";
+  private static final String WORKBOOK = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+          + "<workbook xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\" xmlns:r=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships\">"
+          + "<sheets><sheet name=\"Sheet\" sheetId=\"1\" r:id=\"rId1\"/></sheets>"
+          + "</workbook>";
+  private static final String WORKBOOK_RELS = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+          + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+          + "<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/worksheet\" Target=\"worksheets/sheet1.xml\"/>"
+          + "<Relationship Id=\"rId2\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/styles\" Target=\"styles.xml\"/>"
+          + "</Relationships>";
+  /* Same formats as ExportExcel: plain, gray 50% header, gray 25% row header, number */
+  private static final String STYLES = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+          + "<styleSheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\">"
+          + "<numFmts count=\"1\"><numFmt numFmtId=\"164\" formatCode=\"###,###,###.###\"/></numFmts>"
+          + "<fonts count=\"1\"><font><sz val=\"10\"/><name val=\"Arial\"/></font></fonts>"
+          + "<fills count=\"4\"><fill><patternFill patternType=\"none\"/></fill><fill><patternFill patternType=\"gray125\"/></fill>"
+          + "<fill><patternFill patternType=\"solid\"><fgColor rgb=\"FF808080\"/><bgColor indexed=\"64\"/></patternFill></fill>"
+          + "<fill><patternFill patternType=\"solid\"><fgColor rgb=\"FFC0C0C0\"/><bgColor indexed=\"64\"/></patternFill></fill></fills>"
+          + "<borders count=\"2\"><border><left/><right/><top/><bottom/><diagonal/></border>"
+          + "<border><left style=\"thin\"/><right style=\"thin\"/><top style=\"thin\"/><bottom style=\"thin\"/><diagonal/></border></borders>"
+          + "<cellStyleXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\"/></cellStyleXfs>"
+          + "<cellXfs count=\"5\">"
+          + "<xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\"/>"
+          + "<xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"1\" xfId=\"0\" applyBorder=\"1\"><alignment shrinkToFit=\"1\"/></xf>"
+          + "<xf numFmtId=\"0\" fontId=\"0\" fillId=\"2\" borderId=\"1\" xfId=\"0\" applyFill=\"1\" applyBorder=\"1\"><alignment shrinkToFit=\"1\"/></xf>"
+          + "<xf numFmtId=\"0\" fontId=\"0\" fillId=\"3\" borderId=\"1\" xfId=\"0\" applyFill=\"1\" applyBorder=\"1\"><alignment shrinkToFit=\"1\"/></xf>"
+          + "<xf numFmtId=\"164\" fontId=\"0\" fillId=\"0\" borderId=\"1\" xfId=\"0\" applyNumberFormat=\"1\" applyBorder=\"1\"><alignment shrinkToFit=\"1\"/></xf>"
+          + "</cellXfs>"
+          + "<cellStyles count=\"1\"><cellStyle name=\"Normal\" xfId=\"0\" builtinId=\"0\"/></cellStyles>"
+          + "</styleSheet>";
+  private static final String SHEET_START = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+          + "<worksheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\"><sheetData>";
+  private static final String SHEET_END = "</sheetData></worksheet>";
+  private ZipOutputStream zip;
+  private Writer writer;
+  private String[] columnNames = new String[0];
+
+  public ExportXLSX(final OutputStream out) throws IOException {
+    super(out);
+  }
+
+  public void startExport(int nCols) throws IOException {
+
+    zip = new ZipOutputStream(outputStream);
+    writer = new BufferedWriter(new OutputStreamWriter(zip, "UTF-8"), BUFFER_SIZE);
+    writePart("[Content_Types].xml", CONTENT_TYPES);
+    writePart("_rels/.rels", RELS);
+    writePart("xl/workbook.xml", WORKBOOK);
+    writePart("xl/_rels/workbook.xml.rels", WORKBOOK_RELS);
+    writePart("xl/styles.xml", STYLES);
+
+    zip.putNextEntry(new ZipEntry("xl/worksheets/sheet1.xml"));
+    writer.write(SHEET_START);
+  }
+
+  public void exportRow(int i, String[] vs) throws IOException {
+
+    String row = Integer.toString(i + 1);
+    writer.write("<row r=\"");
+    writer.write(row);
+    writer.write("\">");
+    for (int j = 0; j < vs.length; j++) {
+      String value = vs[j];
+      if (value == null) {
+        break;
+      }
+      writer.write("<c r=\"");
+      writer.write(getColumnName(j));
+      writer.write(row);
+      if (i > 0 && getColumnType(j) != TYPE_STRING && isNumber(value)) {
+        writer.write("\" s=\"" + STYLE_NUMBER + "\"><v>");
+        writer.write(value);
+        writer.write("</v></c>");
+      } else {
+        int style = i == 0 ? STYLE_HEADER : j != 0 ? STYLE_CELL : (i % 2 != 0 ? STYLE_HEADER : STYLE_ROW_HEADER);
+        writer.write("\" s=\"" + style + "\" t=\"inlineStr\"><is><t xml:space=\"preserve\">");
+        writeEscaped(value);
+        writer.write("</t></is></c>");
+      }
+    }
+    writer.write("</row>");
+  }
+
+  public void finishExport() throws IOException {
+
+    try {
+      writer.write(SHEET_END);
+      writer.flush();
+      zip.closeEntry();
+      // Finishes the zip, the response stream itself is left open
+      zip.finish();
+    } catch (IOException e) {
+      logger.error(Messages.getErrorString("CdfExportExcel.ERROR_0002_WRITING_EXCEL"));
+      throw e;
+    }
+  }
+
+  private void writePart(String name, String content) throws IOException {
+    zip.putNextEntry(new ZipEntry(name));
+    writer.write(content);
+    writer.flush();
+    zip.closeEntry();
+  }
+
+  /**
+   * @return A, B, ..., Z, AA, ... for 0, 1, ...
+   */
+  private String getColumnName(int column) {
+    if (column >= columnNames.length) {
+      String[] names = new String[Math.max(column + 1, columnNames.length * 2)];
+      System.arraycopy(columnNames, 0, names, 0, columnNames.length);
+      columnNames = names;
+    }
+    if (columnNames[column] == null) {
+      StringBuilder name = new StringBuilder();
+      for (int n = column + 1; n > 0; n = (n - 1) / 26) {
+        name.insert(0, (char) ('A' + (n - 1) % 26));
+      }
+      columnNames[column] = name.toString();
+    }
+    return columnNames[column];
+  }
+
+  private void writeEscaped(String value) throws IOException {
+    for (int k = 0; k < value.length(); k++) {
+      char c = value.charAt(k);
+      switch (c) {
+        case '&':
+          writer.write("&amp;");
+          break;
+        case '<':
+          writer.write("&lt;");
+          break;
+        case '>':
+          writer.write("&gt;");
+          break;
+        default:
+          // Control characters aren't allowed in XML
+          if (c >= ' ' || c == '\t' || c == '\n' || c == '\r') {
+            writer.write(c);
+          }
+      }
+    }
+  }
+
+  public String getExtension() {
+    return extensionFile;
+  }
+}
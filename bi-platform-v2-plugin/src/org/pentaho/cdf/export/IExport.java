@@ -1,10 +1,22 @@
 package org.pentaho.cdf.export;
 
+import java.io.IOException;
+
 
 public interface IExport {
 
 	public abstract void export(String[][] resultSet) ;
-	
+
+	/*
+	 * Row by row export: startExport, then exportRow for each row (the header
+	 * is row 0), then finishExport.
+	 */
+	public abstract void startExport(int nCols) throws IOException;
+
+	public abstract void exportRow(int rowIndex, String[] row) throws IOException;
+
+	public abstract void finishExport() throws IOException;
+
 	public abstract String getExtension();
-	
-}
\ No newline at end of file
+
+}
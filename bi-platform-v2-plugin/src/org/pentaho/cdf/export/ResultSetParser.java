@@ -0,0 +1,336 @@
+package org.pentaho.cdf.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pentaho.cdf.ServiceCallAction;
+
+/**
+ * Reads a {"metadata": [...], "values": [[...], ...]} result set, as written by
+ * an action, and hands it over to an Export row by row while it's being
+ * written. This is an OutputStream so it can be given to the action directly:
+ * nothing but the row being parsed is kept in memory.
+ * <p/>
+ * Metadata may be a list of names or of {"colName", "colType"} objects.
+ * Expects UTF-8. Other members of the result object are skipped, and so are
+ * nested objects or arrays inside a row, which are exported as empty cells.
+ * Call finish() once the action is done, or have ServiceCallAction.stream()
+ * end it.
+ */
+public class ResultSetParser extends OutputStream implements ServiceCallAction.OutputConsumer
+{
+
+  private static final String METADATA = "metadata";
+  private static final String VALUES = "values";
+  private final Export export;
+  /* Open containers, true for objects */
+  private boolean[] containers = new boolean[16];
+  private int depth;
+  private boolean expectKey;
+  /* Top level member we're in */
+  private String section;
+  private String key;
+  private final StringBuilder token = new StringBuilder();
+  private byte[] pendingBytes = new byte[16];
+  private int pendingLength;
+  private int state = VALUE;
+  private int unicode;
+  private int unicodeDigits;
+  private final List<String> cells = new ArrayList<String>();
+  private final List<String> types = new ArrayList<String>();
+  private String columnName;
+  private String columnType;
+  private boolean finished;
+  private static final int VALUE = 0;
+  private static final int STRING = 1;
+  private static final int ESCAPE = 2;
+  private static final int UNICODE = 3;
+  private static final int LITERAL = 4;
+
+  public ResultSetParser(final Export export)
+  {
+    this.export = export;
+  }
+
+  @Override
+  public void write(int b) throws IOException
+  {
+    accept((byte) b);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException
+  {
+    for (int i = offset; i < offset + length; i++)
+    {
+      accept(bytes[i]);
+    }
+  }
+
+  public void consume(byte[] bytes, int offset, int length) throws IOException
+  {
+    write(bytes, offset, length);
+  }
+
+  /**
+   * Finishes the export if the action succeeded.
+   */
+  public void end(boolean success) throws IOException
+  {
+    if (success)
+    {
+      finish();
+    }
+  }
+
+  /**
+   * Ends the export, exporting "no results" if no rows were found.
+   */
+  public void finish() throws IOException
+  {
+    if (state == LITERAL)
+    {
+      endLiteral();
+    }
+    if (!finished)
+    {
+      finished = true;
+      export.end();
+    }
+  }
+
+  private void accept(byte b) throws IOException
+  {
+
+    switch (state)
+    {
+      case STRING:
+        if (b == '"')
+        {
+          flushPendingBytes();
+          state = VALUE;
+          endString();
+        }
+        else if (b == '\\')
+        {
+          flushPendingBytes();
+          state = ESCAPE;
+        }
+        else if (b < 0)
+        {
+          // Part of a multi byte character, decoded when the sequence ends
+          if (pendingLength == pendingBytes.length)
+          {
+            byte[] grown = new byte[pendingBytes.length * 2];
+            System.arraycopy(pendingBytes, 0, grown, 0, pendingLength);
+            pendingBytes = grown;
+          }
+          pendingBytes[pendingLength++] = b;
+        }
+        else
+        {
+          flushPendingBytes();
+          token.append((char) b);
+        }
+        return;
+
+      case ESCAPE:
+        state = STRING;
+        switch (b)
+        {
+          case 'b':
+            token.append('\b');
+            break;
+          case 'f':
+            token.append('\f');
+            break;
+          case 'n':
+            token.append('\n');
+            break;
+          case 'r':
+            token.append('\r');
+            break;
+          case 't':
+            token.append('\t');
+            break;
+          case 'u':
+            state = UNICODE;
+            unicode = 0;
+            unicodeDigits = 0;
+            break;
+          default:
+            token.append((char) b);
+        }
+        return;
+
+      case UNICODE:
+        unicode = unicode * 16 + Character.digit((char) b, 16);
+        if (++unicodeDigits == 4)
+        {
+          token.append((char) unicode);
+          state = STRING;
+        }
+        return;
+
+      case LITERAL:
+        if (b == ',' || b == ']' || b == '}' || b <= ' ')
+        {
+          endLiteral();
+          break;
+        }
+        token.append((char) b);
+        return;
+
+      default:
+        break;
+    }
+
+    // state == VALUE: structure
+    switch (b)
+    {
+      case '{':
+        openContainer(true);
+        break;
+      case '[':
+        openContainer(false);
+        break;
+      case '}':
+      case ']':
+        closeContainer();
+        break;
+      case ',':
+        expectKey = depth > 0 && containers[depth - 1];
+        break;
+      case '"':
+        state = STRING;
+        token.setLength(0);
+        break;
+      case ':':
+      case ' ':
+      case '\t':
+      case '\r':
+      case '\n':
+        break;
+      default:
+        state = LITERAL;
+        token.setLength(0);
+        token.append((char) b);
+    }
+  }
+
+  private void openContainer(boolean object)
+  {
+    if (depth == 1)
+    {
+      // A member of the result object
+      section = key;
+      cells.clear();
+      types.clear();
+    }
+    else if (depth == 2 && METADATA.equals(section))
+    {
+      // {"colName": ..., "colType": ...}
+      columnName = "";
+      columnType = null;
+    }
+    else if (depth == 2 && VALUES.equals(section))
+    {
+      // A row
+      cells.clear();
+    }
+    else if (depth == 3 && VALUES.equals(section))
+    {
+      // Something we can't export inside a row
+      cells.add("");
+    }
+    if (depth == containers.length)
+    {
+      boolean[] grown = new boolean[depth * 2];
+      System.arraycopy(containers, 0, grown, 0, depth);
+      containers = grown;
+    }
+    containers[depth++] = object;
+    expectKey = object;
+  }
+
+  private void closeContainer() throws IOException
+  {
+    if (depth == 0)
+    {
+      return;
+    }
+    depth--;
+    if (depth == 2 && VALUES.equals(section))
+    {
+      export.values(cells.toArray(new String[cells.size()]));
+    }
+    else if (depth == 2 && METADATA.equals(section))
+    {
+      cells.add(columnName);
+      types.add(columnType);
+    }
+    else if (depth == 1)
+    {
+      if (METADATA.equals(section))
+      {
+        export.metadata(cells.toArray(new String[cells.size()]), types.toArray(new String[types.size()]));
+      }
+      section = null;
+    }
+    expectKey = false;
+  }
+
+  private void endString()
+  {
+    String value = token.toString();
+    if (expectKey)
+    {
+      key = value;
+      expectKey = false;
+      return;
+    }
+    scalar(value);
+  }
+
+  private void endLiteral() throws IOException
+  {
+    state = VALUE;
+    scalar(token.toString());
+  }
+
+  private void scalar(String value)
+  {
+    if (depth == 2 && METADATA.equals(section))
+    {
+      cells.add(value);
+      types.add(null);
+    }
+    else if (depth == 3 && METADATA.equals(section))
+    {
+      if (Export.COLUMN_NAME.equals(key))
+      {
+        columnName = value;
+      }
+      else if (Export.COLUMN_TYPE.equals(key))
+      {
+        columnType = value;
+      }
+    }
+    else if (depth == 3 && VALUES.equals(section))
+    {
+      cells.add(value);
+    }
+  }
+
+  private void flushPendingBytes() throws UnsupportedEncodingException
+  {
+    if (pendingLength > 0)
+    {
+      token.append(new String(pendingBytes, 0, pendingLength, "UTF-8"));
+      pendingLength = 0;
+    }
+  }
+}
@@ -1,12 +1,17 @@
 package org.pentaho.cdf.localization;
 
+import org.json.JSONObject;
 import org.pentaho.cdf.CdfConstants;
 import org.pentaho.platform.engine.core.solution.ActionInfo;
 import org.pentaho.platform.engine.core.system.PentahoSystem;
 import org.pentaho.platform.util.messages.LocaleHelper;
 
 import java.io.*;
-import java.util.Locale;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by IntelliJ IDEA.
@@ -14,6 +19,11 @@ import java.util.Locale;
  * Date: 7-lug-2010
  * Time: 11.27.43
  * To change this template use File | Settings | File Templates.
+ * <p/>
+ * Merged bundles are kept in memory, by the cache file they're written to
+ * (dashboard, base name and language). They're only merged and written again
+ * when one of their source files changes, which is checked at most every
+ * CHECK_INTERVAL milliseconds.
  */
 public class MessageBundlesHelper {
 
@@ -24,8 +34,100 @@ public class MessageBundlesHelper {
     private String sourceDashboardBaseMsgFile;
     private static final String PENTAHO_CDF_GLOBAL_LANGUAGES_DIR = "pentaho-cdf/resources/languages";
     private static final String PENTAHO_CDF_DIR = "pentaho-cdf/";
+    private static final String PROPERTIES = ".properties";
+    private static final long CHECK_INTERVAL = 2000;
+    private static final Map<String, MergedBundle> bundles = new ConcurrentHashMap<String, MergedBundle>();
+    /* Messages of the std global bundle and a dashboard's, by the dashboard's cache file */
+    private static final Map<String, CombinedBundle> combinedBundles = new ConcurrentHashMap<String, CombinedBundle>();
     private String languagesCacheUrl;
 
+    /**
+     * Messages, and their JSON, worked out once for every render using them.
+     */
+    private static class BundleMessages {
+
+        private final Map<String, String> messages;
+        private final String json;
+        private final Map<String, String> translations;
+
+        BundleMessages(Map<String, String> messages) {
+            this.messages = Collections.unmodifiableMap(messages);
+            this.json = new JSONObject(messages).toString();
+            Map<String, String> translations = new HashMap<String, String>();
+            for (Map.Entry<String, String> message : messages.entrySet()) {
+                translations.put(message.getKey(), decode(message.getValue()));
+            }
+            this.translations = Collections.unmodifiableMap(translations);
+        }
+    }
+
+    /**
+     * The messages of two bundles, the second one's replacing the first
+     * one's, as merged from these two instances.
+     */
+    private static class CombinedBundle {
+
+        private final MergedBundle first;
+        private final MergedBundle second;
+        private final BundleMessages messages;
+
+        CombinedBundle(MergedBundle first, MergedBundle second) {
+            this.first = first;
+            this.second = second;
+            Map<String, String> messages = new LinkedHashMap<String, String>(first.messages.messages);
+            messages.putAll(second.messages.messages);
+            this.messages = new BundleMessages(messages);
+        }
+    }
+
+    /**
+     * Bundle files concatenated into a cache file, and the messages they
+     * have, as the browser reads them.
+     */
+    private static class MergedBundle {
+
+        private final File target;
+        private final File[] sources;
+        private final long[] lastModified;
+        private final byte[] content;
+        private final BundleMessages messages;
+        private volatile long checked;
+
+        MergedBundle(File target, File[] sources) throws IOException {
+            this.target = target;
+            this.sources = sources;
+            this.lastModified = new long[sources.length];
+            for (int i = 0; i < sources.length; i++) {
+                lastModified[i] = sources[i].lastModified();
+            }
+            this.content = merge(sources);
+            this.messages = new BundleMessages(parse(content));
+            this.checked = System.currentTimeMillis();
+        }
+
+        /**
+         * @return true if a source changed, appeared or disappeared since the
+         *         merge, or the cache file is gone
+         */
+        boolean isStale() {
+            long now = System.currentTimeMillis();
+            if (now - checked < CHECK_INTERVAL) {
+                return false;
+            }
+            for (int i = 0; i < sources.length; i++) {
+                // 0 when it doesn't exist
+                if (sources[i].lastModified() != lastModified[i]) {
+                    return true;
+                }
+            }
+            if (!target.exists()) {
+                return true;
+            }
+            checked = now;
+            return false;
+        }
+    }
+
 
     public MessageBundlesHelper(String dashboardSolution,
                                 String dashboardPath,
@@ -37,7 +139,6 @@ public class MessageBundlesHelper {
     }
 
     public void saveI18NMessageFilesToCache() throws IOException {
-        createCacheDirIfNotExists(targetDashboardCacheDir);
         copyStdGlobalMessageFileToCache();
         if (sourceDashboardBaseMsgFile != null) {
             appendMessageFiles(sourceDashboardBaseMsgFile, globalBaseMessageFile, targetDashboardBaseMsgFile);
@@ -46,6 +147,46 @@ public class MessageBundlesHelper {
         }
     }
 
+    /**
+     * @return the messages the browser gets loading the dashboard's bundles
+     *         from the cache in the user's language, in file order; each
+     *         value as it is in its file
+     */
+    public Map<String, String> getMessages() throws IOException {
+        return getBundleMessages().messages;
+    }
+
+    /**
+     * @return getMessages() as a JSON object, to be given to
+     *         jQuery.i18n.properties as messages
+     */
+    public String getMessagesJSON() throws IOException {
+        return getBundleMessages().json;
+    }
+
+    /**
+     * @return getMessages() as the browser shows them, with their unicode
+     *         escapes decoded
+     */
+    public Map<String, String> getTranslations() throws IOException {
+        return getBundleMessages().translations;
+    }
+
+    private BundleMessages getBundleMessages() throws IOException {
+        MergedBundle bundle = getMergedBundle();
+        // The browser loads <name>.properties and then <name>_<language>.properties
+        if (!new File(targetDashboardBaseMsgFile).getName().equals(CdfConstants.BASE_GLOBAL_MESSAGE_SET_FILENAME)) {
+            return bundle.messages;
+        }
+        MergedBundle global = getStdGlobalMessageBundle();
+        String key = bundle.target.getPath();
+        CombinedBundle combined = combinedBundles.get(key);
+        if (combined == null || combined.first != global || combined.second != bundle) {
+            combined = new CombinedBundle(global, bundle);
+            combinedBundles.put(key, combined);
+        }
+        return combined.messages;
+    }
 
     public String getMessageFilesCacheUrl() {
         return languagesCacheUrl.replace(File.separator, "/");
@@ -81,67 +222,168 @@ public class MessageBundlesHelper {
                                      String targetDashboardBaseMsgFile) throws IOException {
         appendMessageFiles(null, globalBaseMessageFile, targetDashboardBaseMsgFile);
     }
-    
+
+    /**
+     * Writes the user's language global messages (or the base ones, if
+     * there's no translation) followed by the dashboard's ones, if any, to
+     * the target file, unless it's up to date.
+     */
     protected void appendMessageFiles(String sourceDashboardBaseMsgFile,
                                     String globalBaseMessageFile,
                                     String targetDashboardBaseMsgFile) throws IOException {
 
-        Locale locale = LocaleHelper.getLocale();
-        targetDashboardBaseMsgFile = targetDashboardBaseMsgFile + "_" + locale.getLanguage();
-        File fBaseMsgGlobal = new File(globalBaseMessageFile + "_" + locale.getLanguage() + ".properties");
-        File fBaseMsgTarget = new File(targetDashboardBaseMsgFile + ".properties");
-        
-        String theLine;
-        if (!fBaseMsgTarget.exists()) {
-            fBaseMsgTarget.createNewFile();
-            BufferedWriter bwBaseMsgTarget = new BufferedWriter(new FileWriter(fBaseMsgTarget, true));
-            // If localized global message file doesn't exists then use the standard base global message file
-            // and generate a fake global message file. So this way we're sure that we always have the file
-            if (!fBaseMsgGlobal.exists())
-                fBaseMsgGlobal = new File(globalBaseMessageFile  + ".properties");
-            BufferedReader brBaseMsgGlobal = new BufferedReader(new FileReader(fBaseMsgGlobal));
-            while ((theLine = brBaseMsgGlobal.readLine()) != null) {
-                bwBaseMsgTarget.write(theLine + "\n");
-            }
-            brBaseMsgGlobal.close();
-
-            // Append specific message file only if it exists otherwise just use the global message files
-            if (sourceDashboardBaseMsgFile != null) {
-                sourceDashboardBaseMsgFile = sourceDashboardBaseMsgFile + "_" + locale.getLanguage();
-                File fBaseMsgDashboard = new File(sourceDashboardBaseMsgFile + ".properties");
-                if (fBaseMsgDashboard.exists()) {
-                    BufferedReader brBaseMsgDashboard = new BufferedReader(new FileReader(fBaseMsgDashboard));
-                    while ((theLine = brBaseMsgDashboard.readLine()) != null) {
-                        bwBaseMsgTarget.write(theLine + "\n");
-                    }
-                    brBaseMsgDashboard.close();
-                }
-            }
-            bwBaseMsgTarget.close();
-        }
+        String language = "_" + LocaleHelper.getLocale().getLanguage();
+        File target = new File(targetDashboardBaseMsgFile + language + PROPERTIES);
+        // The localized global messages first, as they're replaced by the base ones when they don't exist
+        File[] sources = sourceDashboardBaseMsgFile != null
+                ? new File[]{new File(globalBaseMessageFile + language + PROPERTIES), new File(globalBaseMessageFile + PROPERTIES), new File(sourceDashboardBaseMsgFile + language + PROPERTIES)}
+                : new File[]{new File(globalBaseMessageFile + language + PROPERTIES), new File(globalBaseMessageFile + PROPERTIES)};
+        getBundle(target, sources);
     }
 
     protected void copyStdGlobalMessageFileToCache() throws IOException {
+        getStdGlobalMessageBundle();
+    }
 
-        String standardGlobalMessageFilename = CdfConstants.BASE_GLOBAL_MESSAGE_SET_FILENAME + ".properties";
+    private MergedBundle getStdGlobalMessageBundle() throws IOException {
+        String standardGlobalMessageFilename = CdfConstants.BASE_GLOBAL_MESSAGE_SET_FILENAME + PROPERTIES;
         String fromFile = baseUrl + ActionInfo.buildSolutionPath("system", PENTAHO_CDF_GLOBAL_LANGUAGES_DIR, standardGlobalMessageFilename);
         String toFile = targetDashboardCacheDir + "/" + standardGlobalMessageFilename;
+        return getBundle(new File(toFile), new File[]{new File(fromFile)});
+    }
+
+    private MergedBundle getMergedBundle() throws IOException {
+        saveI18NMessageFilesToCache();
+        return bundles.get(new File(targetDashboardBaseMsgFile + "_" + LocaleHelper.getLocale().getLanguage() + PROPERTIES).getPath());
+    }
 
-        File outputFile = new File(toFile);
-        if (outputFile.exists()) return;
-        outputFile.createNewFile();
-        
-        File inputFile = new File(fromFile);
+    /**
+     * @return the bundle merged into target, merging and writing it if it
+     *         isn't yet or is out of date
+     */
+    private MergedBundle getBundle(File target, File[] sources) throws IOException {
+        String key = target.getPath();
+        MergedBundle bundle = bundles.get(key);
+        if (bundle != null && !bundle.isStale()) {
+            return bundle;
+        }
+        // Two renders may merge the same bundle at once, they write the same thing
+        bundle = new MergedBundle(target, sources);
+        write(target, bundle.content);
+        bundles.put(key, bundle);
+        return bundle;
+    }
+
+    /**
+     * Concatenates the sources, as they are: the first of the two global
+     * files that exists, then the dashboard's if there's one and it exists.
+     */
+    private static byte[] merge(File[] sources) throws IOException {
+        ByteArrayOutputStream merged = new ByteArrayOutputStream();
+        File global = sources[0].exists() || sources.length == 1 ? sources[0] : sources[1];
+        append(merged, global);
+        if (sources.length > 2 && sources[2].exists()) {
+            append(merged, sources[2]);
+        }
+        return merged.toByteArray();
+    }
 
-        FileReader in = new FileReader(inputFile);
-        FileWriter out = new FileWriter(outputFile);
-        int c;
+    private static void append(ByteArrayOutputStream merged, File source) throws IOException {
+        if (!source.exists()) {
+            return;
+        }
+        byte[] bytes = new byte[(int) source.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(source));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        merged.write(bytes);
+        // Don't glue the next file's first line to this one's last
+        if (bytes.length > 0 && bytes[bytes.length - 1] != '\n') {
+            merged.write('\n');
+        }
+    }
 
-        while ((c = in.read()) != -1)
-          out.write(c);
+    /**
+     * Writes the file through a temporary one, so the browser never gets a
+     * half written bundle.
+     */
+    private static void write(File target, byte[] content) throws IOException {
+        File dir = target.getParentFile();
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        File temp = File.createTempFile(target.getName(), ".tmp", dir);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(content);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(target)) {
+                // Can't rename over an existing file everywhere
+                target.delete();
+                if (!temp.renameTo(target)) {
+                    throw new IOException("Couldn't write " + target.getPath());
+                }
+            }
+        } finally {
+            temp.delete();
+        }
+    }
 
-        in.close();
-        out.close();
+    /**
+     * Reads the messages as jquery.i18n.properties does: UTF-8, one key=value
+     * per line, # comments.
+     */
+    private static Map<String, String> parse(byte[] content) throws UnsupportedEncodingException {
+        Map<String, String> messages = new LinkedHashMap<String, String>();
+        String text = new String(content, "UTF-8");
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            if (end < 0) {
+                end = text.length();
+            }
+            String line = text.substring(start, end).trim();
+            start = end + 1;
+            if (line.length() == 0 || line.charAt(0) == '#') {
+                continue;
+            }
+            int equals = line.indexOf('=');
+            if (equals < 0) {
+                messages.put(line, "");
+            } else {
+                messages.put(line.substring(0, equals).trim(), line.substring(equals + 1).trim());
+            }
+        }
+        return messages;
+    }
 
+    /**
+     * @return value with its unicode escapes decoded
+     */
+    private static String decode(String value) {
+        if (value.indexOf("\\u") < 0) {
+            return value;
+        }
+        StringBuilder decoded = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 6 <= value.length() && value.charAt(i + 1) == 'u') {
+                try {
+                    decoded.append((char) Integer.parseInt(value.substring(i + 2, i + 6), 16));
+                    i += 5;
+                    continue;
+                } catch (NumberFormatException e) {
+                    // Not an escape, taken as it is
+                }
+            }
+            decoded.append(c);
+        }
+        return decoded.toString();
     }
 }
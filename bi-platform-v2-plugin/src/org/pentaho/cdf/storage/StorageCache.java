@@ -0,0 +1,132 @@
+package org.pentaho.cdf.storage;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pentaho.cdf.utils.LRUCache;
+import org.pentaho.platform.api.engine.IPluginResourceLoader;
+import org.pentaho.platform.engine.core.system.PentahoSystem;
+
+/**
+ * Read-through cache of the users' storage values, so that rendering a
+ * dashboard doesn't need a database round trip to inline Dashboards.storage.
+ * <p/>
+ * Bounded by the total number of characters cached (settings/storage/cache-size).
+ * StorageEngine updates it on store/delete and CdfSessionCache drops a user's
+ * values, the whole storage and the namespaced keys, on logout.
+ */
+public class StorageCache
+{
+
+  private static final Log logger = LogFactory.getLog(StorageCache.class);
+  private static final long DEFAULT_CACHE_SIZE = 4 * 1024 * 1024;
+  /* Can't be part of a user name, so namespace entries can't collide with a plain user entry */
+  private static final char NAMESPACE_SEPARATOR = '\n';
+  private static StorageCache _instance;
+  private final LRUCache<String, String> values;
+  /**
+   * Bumped on every change, so that a value read from the database while
+   * a store was happening isn't cached over the newer one.
+   */
+  private long version;
+
+  public static synchronized StorageCache getInstance()
+  {
+    if (_instance == null)
+    {
+      _instance = new StorageCache();
+    }
+    return _instance;
+  }
+
+  private StorageCache()
+  {
+    long cacheSize = DEFAULT_CACHE_SIZE;
+    IPluginResourceLoader resLoader = PentahoSystem.get(IPluginResourceLoader.class, null);
+    String size = resLoader != null ? resLoader.getPluginSetting(StorageCache.class, "settings/storage/cache-size") : null;
+    if (size != null && size.trim().length() > 0)
+    {
+      cacheSize = Long.parseLong(size.trim());
+    }
+    logger.debug("Storage cache size: " + cacheSize);
+
+    values = new LRUCache<String, String>(cacheSize)
+    {
+
+      @Override
+      protected long sizeOf(String value)
+      {
+        return value.length();
+      }
+    };
+  }
+
+  public String get(String user)
+  {
+    return values.get(user);
+  }
+
+  /**
+   * @return the version to hand back to putIfUnchanged after reading from the database
+   */
+  public synchronized long getVersion()
+  {
+    return version;
+  }
+
+  /**
+   * Caches a value read from the database, unless the storage changed since
+   * <code>readVersion</code> was taken.
+   */
+  public synchronized void putIfUnchanged(String user, String value, long readVersion)
+  {
+    if (readVersion == version)
+    {
+      values.put(user, value);
+    }
+  }
+
+  /**
+   * Records a value that was just stored (or "{}" after a delete).
+   */
+  public synchronized void update(String user, String value)
+  {
+    version++;
+    values.put(user, value);
+  }
+
+  public synchronized void invalidate(String user)
+  {
+    version++;
+    values.remove(user);
+  }
+
+  /**
+   * Drops the user's storage value and the user's keys of every namespace.
+   */
+  public synchronized void invalidateUser(String user)
+  {
+    version++;
+    values.remove(user);
+    String prefix = user + NAMESPACE_SEPARATOR;
+    for (String key : values.getKeys())
+    {
+      if (key.startsWith(prefix))
+      {
+        values.remove(key);
+      }
+    }
+  }
+
+  /**
+   * @return the key the user's keys of a namespace are cached under
+   */
+  public static String getNamespaceKey(String user, String namespace)
+  {
+    return user + NAMESPACE_SEPARATOR + namespace;
+  }
+
+  public void clear()
+  {
+    values.clear();
+  }
+}
@@ -5,14 +5,23 @@ import java.util.logging.Logger;
 import org.pentaho.cdf.PluginHibernateException;
 import org.pentaho.cdf.comments.*;
 import java.io.InputStream;
-import java.lang.reflect.Method;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Query;
 import org.hibernate.Session;
+import org.hibernate.exception.ConstraintViolationException;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -20,21 +29,64 @@ import org.pentaho.cdf.InvalidCdfOperationException;
 import org.pentaho.cdf.Messages;
 import org.pentaho.cdf.utils.PluginHibernateUtil;
 import org.pentaho.cdf.utils.Util;
+import org.pentaho.platform.api.engine.ILogoutListener;
 import org.pentaho.platform.api.engine.IParameterProvider;
 import org.pentaho.platform.api.engine.IPentahoSession;
 import org.pentaho.platform.api.engine.IPluginResourceLoader;
 import org.pentaho.platform.engine.core.system.PentahoSystem;
+import pt.webdetails.cpf.ActionDispatcher;
 
 /**
  *
  * @author pedro
  */
-public class StorageEngine
+public class StorageEngine implements ILogoutListener
 {
 
   private static final Log logger = LogFactory.getLog(StorageEngine.class);
+  /* Actions are the public methods taking the request parameters and the user session */
+  private static final ActionDispatcher actions = new ActionDispatcher(StorageEngine.class, new Class<?>[]
+  {
+    IParameterProvider.class, IPentahoSession.class
+  }, "process");
   private static StorageEngine _instance;
-  private static final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+  private static final long DEFAULT_FLUSH_INTERVAL = 5000;
+  /* Users written per transaction, and per IN list */
+  private static final int MAX_FLUSH_SIZE = 500;
+  /* Failed flushes after which a pending write is given up */
+  private static final int MAX_FLUSH_FAILURES = 10;
+  /**
+   * Write-behind buffer: user -> last value stored and not yet written to the
+   * database. Only used when settings/storage/write-behind is true.
+   */
+  private final ConcurrentHashMap<String, PendingWrite> pendingWrites = new ConcurrentHashMap<String, PendingWrite>();
+  private volatile ScheduledExecutorService writer;
+
+  /**
+   * A buffered store (or delete, when value is null) for one user.
+   */
+  private static class PendingWrite
+  {
+
+    final String value;
+    final Date date;
+    /* Only touched by flush, which is synchronized */
+    int failures;
+
+    PendingWrite(String value)
+    {
+      this.value = value;
+      this.date = Calendar.getInstance().getTime();
+    }
+  }
+
+  /**
+   * @return calls, errors and time of each action called so far
+   */
+  public static JSONObject getActionStatistics() throws JSONException
+  {
+    return actions.getStatistics();
+  }
 
   public static synchronized StorageEngine getInstance()
   {
@@ -58,6 +110,8 @@ public class StorageEngine
       return;
     }
 
+    startWriteBehind();
+
   }
 
   public String process(IParameterProvider requestParams, IPentahoSession userSession) throws InvalidCdfOperationException
@@ -65,22 +119,22 @@ public class StorageEngine
 
     String actionParam = requestParams.getStringParameter("action", "");
 
-    Class[] params =
-    {
-      IParameterProvider.class, IPentahoSession.class
-    };
     try
     {
 
-      Method mthd = this.getClass().getMethod(actionParam, params);
+      ActionDispatcher.Action action = actions.get(actionParam);
+      if (action == null)
+      {
+        throw new NoSuchMethodException(actionParam);
+      }
 
-      return (String) mthd.invoke(this, requestParams, userSession);
+      return (String) action.invoke(this, requestParams, userSession);
 
 
     }
     catch (NoSuchMethodException ex)
     {
-      logger.error("NoSuchMethodException : " + actionParam + " - " + getExceptionDescription(ex));
+      logger.error("NoSuchMethodException : " + actionParam);
       throw new InvalidCdfOperationException(ex);
     }
     catch (Exception ex)
@@ -118,28 +172,51 @@ public class StorageEngine
 
     logger.debug("Storing user entry");
 
+    if (writer != null)
+    {
+      // Last write wins until the background writer flushes it
+      pendingWrites.put(user, new PendingWrite(storageValue));
+      StorageCache.getInstance().update(user, storageValue);
+      if (writer == null)
+      {
+        // Shut down meanwhile, its last flush may have missed this one
+        flushPending(user);
+      }
+      JSONObject json = new JSONObject();
+      json.put("result", Boolean.TRUE);
+      return json.toString(2);
+    }
+
     // if we have one, get it. Otherwise, create a new one
 
-    Session session = getSession();
-    session.beginTransaction();
+    Session session = PluginHibernateUtil.openSession();
+    try
+    {
+      session.beginTransaction();
 
-    Query query = session.getNamedQuery("org.pentaho.cdf.storage.StorageEntry.getStorageForUser").setString("user", user);
-    StorageEntry storageEntry = (StorageEntry) query.uniqueResult();
+      Query query = session.getNamedQuery("org.pentaho.cdf.storage.StorageEntry.getStorageForUser").setString("user", user);
+      StorageEntry storageEntry = (StorageEntry) query.uniqueResult();
 
-    if (storageEntry == null)
-    {
-      storageEntry = new StorageEntry();
-      storageEntry.setUser(user);
-    }
+      if (storageEntry == null)
+      {
+        storageEntry = new StorageEntry();
+        storageEntry.setUser(user);
+      }
 
-    storageEntry.setStorageValue(storageValue);
-    storageEntry.setLastUpdatedDate(Calendar.getInstance().getTime());
+      storageEntry.setStorageValue(storageValue);
+      storageEntry.setLastUpdatedDate(Calendar.getInstance().getTime());
 
 
-    session.save(storageEntry);
-    session.flush();
-    session.getTransaction().commit();
-    session.close();
+      session.save(storageEntry);
+      session.flush();
+      session.getTransaction().commit();
+    }
+    finally
+    {
+      PluginHibernateUtil.closeSession(session);
+    }
+
+    StorageCache.getInstance().update(user, storageValue);
 
     // Return success
     JSONObject json = new JSONObject();
@@ -162,17 +239,38 @@ public class StorageEngine
       return "{}";
     }
 
-    Session session = getSession();
+    // Read your own writes: a value waiting to be flushed is the current one
+    PendingWrite pending = pendingWrites.get(user);
+    if (pending != null)
+    {
+      return pending.value != null ? pending.value : "{}";
+    }
 
-    Query query = session.getNamedQuery("org.pentaho.cdf.storage.StorageEntry.getStorageForUser").setString("user", user);
+    StorageCache cache = StorageCache.getInstance();
+    String result = cache.get(user);
+    if (result != null)
+    {
+      return result;
+    }
+    long version = cache.getVersion();
+
+    Session session = PluginHibernateUtil.openSession();
+    try
+    {
+      Query query = session.getNamedQuery("org.pentaho.cdf.storage.StorageEntry.getStorageForUser").setString("user", user);
 
-    StorageEntry storageEntry = (StorageEntry) query.uniqueResult();
+      StorageEntry storageEntry = (StorageEntry) query.uniqueResult();
 
-    // Return it, or an empty value
+      // Return it, or an empty value
 
-    String result = storageEntry != null ? storageEntry.getStorageValue() : "{}";
-    session.close();
+      result = storageEntry != null && storageEntry.getStorageValue() != null ? storageEntry.getStorageValue() : "{}";
+    }
+    finally
+    {
+      PluginHibernateUtil.closeSession(session);
+    }
 
+    cache.putIfUnchanged(user, result, version);
     return result;
 
 
@@ -193,20 +291,43 @@ public class StorageEngine
 
     logger.debug("Deleting storage for user " + user);
 
-    Session session = getSession();
-    session.beginTransaction();
-
-    Query query = session.getNamedQuery("org.pentaho.cdf.storage.StorageEntry.getStorageForUser").setString("user", user);
-    StorageEntry storageEntry = (StorageEntry) query.uniqueResult();
+    if (writer != null)
+    {
+      // Queued as well, so that it can't be overtaken by an older pending store
+      pendingWrites.put(user, new PendingWrite(null));
+      StorageCache.getInstance().update(user, "{}");
+      if (writer == null)
+      {
+        // Shut down meanwhile, its last flush may have missed this one
+        flushPending(user);
+      }
+      JSONObject json = new JSONObject();
+      json.put("result", Boolean.TRUE);
+      return json.toString(2);
+    }
 
-    if (storageEntry != null)
+    Session session = PluginHibernateUtil.openSession();
+    try
     {
-      session.delete(storageEntry);
+      session.beginTransaction();
+
+      Query query = session.getNamedQuery("org.pentaho.cdf.storage.StorageEntry.getStorageForUser").setString("user", user);
+      StorageEntry storageEntry = (StorageEntry) query.uniqueResult();
 
+      if (storageEntry != null)
+      {
+        session.delete(storageEntry);
+
+      }
+      session.flush();
+      session.getTransaction().commit();
+    }
+    finally
+    {
+      PluginHibernateUtil.closeSession(session);
     }
-    session.flush();
-    session.getTransaction().commit();
-    session.close();
+
+    StorageCache.getInstance().update(user, "{}");
 
     // Return success
     JSONObject json = new JSONObject();
@@ -215,11 +336,444 @@ public class StorageEngine
 
   }
 
-  private synchronized Session getSession() throws PluginHibernateException
+  /**
+   * Returns a single key of the user's storage: {"result": value}, where value
+   * is null if the key isn't set.
+   */
+  public String getKey(IParameterProvider requestParams, IPentahoSession userSession) throws JSONException, InvalidCdfOperationException, PluginHibernateException
+  {
+
+    String user = userSession.getName();
+    String namespace = getNamespace(requestParams);
+    String key = getKeyParameter(requestParams);
+
+    JSONObject json = new JSONObject();
+    if (user.equals("anonymousUser"))
+    {
+      json.put("result", JSONObject.NULL);
+      return json.toString(2);
+    }
+
+    StorageKeyEntry entry;
+    Session session = PluginHibernateUtil.openSession();
+    try
+    {
+      entry = (StorageKeyEntry) session.getNamedQuery("org.pentaho.cdf.storage.StorageKeyEntry.getKey").setString("hash", StorageKeyEntry.hashKey(user, namespace, key)).setString("user", user).setString("namespace", namespace).setString("key", key).uniqueResult();
+    }
+    finally
+    {
+      PluginHibernateUtil.closeSession(session);
+    }
+
+    json.put("result", entry != null ? entry.getStorageValue() : JSONObject.NULL);
+    return json.toString(2);
+
+  }
+
+  /**
+   * Stores a single key of the user's storage, without touching the others.
+   */
+  public String putKey(IParameterProvider requestParams, IPentahoSession userSession) throws JSONException, InvalidCdfOperationException, PluginHibernateException
+  {
+
+    String user = userSession.getName();
+
+    // Do nothing for anonymousUser, we shouldn't even be here
+    if (user.equals("anonymousUser"))
+    {
+      JSONObject json = new JSONObject();
+      json.put("result", Boolean.FALSE);
+      return json.toString(2);
+    }
+
+    String namespace = getNamespace(requestParams);
+    String key = getKeyParameter(requestParams);
+    String value = requestParams.getStringParameter("value", null);
+    if (value == null)
+    {
+      logger.error("Parameter 'value' Can't be null");
+      throw new InvalidCdfOperationException("Parameter 'value' Can't be null");
+    }
+
+    logger.debug("Storing key " + key + " for user " + user);
+
+    try
+    {
+      writeKey(user, namespace, key, value);
+    }
+    catch (ConstraintViolationException ex)
+    {
+      // Inserted by a concurrent putKey after we looked: it's there now, update it
+      logger.debug("Key " + key + " of user " + user + " was inserted meanwhile, updating it");
+      writeKey(user, namespace, key, value);
+    }
+
+    StorageCache.getInstance().invalidate(StorageCache.getNamespaceKey(user, namespace));
+
+    JSONObject json = new JSONObject();
+    json.put("result", Boolean.TRUE);
+    return json.toString(2);
+
+  }
+
+  private void writeKey(String user, String namespace, String key, String value) throws PluginHibernateException
+  {
+    Session session = PluginHibernateUtil.openSession();
+    try
+    {
+      session.beginTransaction();
+
+      StorageKeyEntry entry = (StorageKeyEntry) session.getNamedQuery("org.pentaho.cdf.storage.StorageKeyEntry.getKey").setString("hash", StorageKeyEntry.hashKey(user, namespace, key)).setString("user", user).setString("namespace", namespace).setString("key", key).uniqueResult();
+      if (entry == null)
+      {
+        entry = new StorageKeyEntry(user, namespace, key, value);
+      }
+      entry.setStorageValue(value);
+      entry.setLastUpdatedDate(Calendar.getInstance().getTime());
+
+      session.save(entry);
+      session.flush();
+      session.getTransaction().commit();
+    }
+    finally
+    {
+      // Rolls back whatever didn't commit
+      PluginHibernateUtil.closeSession(session);
+    }
+  }
+
+  /**
+   * Removes a single key of the user's storage.
+   */
+  public String deleteKey(IParameterProvider requestParams, IPentahoSession userSession) throws JSONException, InvalidCdfOperationException, PluginHibernateException
+  {
+
+    String user = userSession.getName();
+
+    // Do nothing for anonymousUser, we shouldn't even be here
+    if (user.equals("anonymousUser"))
+    {
+      JSONObject json = new JSONObject();
+      json.put("result", Boolean.FALSE);
+      return json.toString(2);
+    }
+
+    String namespace = getNamespace(requestParams);
+    String key = getKeyParameter(requestParams);
+
+    logger.debug("Deleting key " + key + " for user " + user);
+
+    Session session = PluginHibernateUtil.openSession();
+    try
+    {
+      session.beginTransaction();
+
+      StorageKeyEntry entry = (StorageKeyEntry) session.getNamedQuery("org.pentaho.cdf.storage.StorageKeyEntry.getKey").setString("hash", StorageKeyEntry.hashKey(user, namespace, key)).setString("user", user).setString("namespace", namespace).setString("key", key).uniqueResult();
+      if (entry != null)
+      {
+        session.delete(entry);
+      }
+      session.flush();
+      session.getTransaction().commit();
+    }
+    finally
+    {
+      PluginHibernateUtil.closeSession(session);
+    }
+
+    StorageCache.getInstance().invalidate(StorageCache.getNamespaceKey(user, namespace));
+
+    JSONObject json = new JSONObject();
+    json.put("result", Boolean.TRUE);
+    return json.toString(2);
+
+  }
+
+  /**
+   * Returns every key the user has in the given namespace as a JSON object.
+   */
+  public String readKeys(IParameterProvider requestParams, IPentahoSession userSession) throws JSONException, InvalidCdfOperationException, PluginHibernateException
   {
+    return readKeys(userSession.getName(), getNamespace(requestParams));
+  }
+
+  /**
+   * Returns every key the user has in the given namespace as a JSON object.
+   * This is what gets inlined in a dashboard when it's rendered, so it's cached
+   * alongside the storage values.
+   */
+  @SuppressWarnings("unchecked")
+  public String readKeys(String user, String namespace) throws JSONException, PluginHibernateException
+  {
+
+    // Do nothing for anonymousUser
+    if (user.equals("anonymousUser"))
+    {
+      return "{}";
+    }
+
+    StorageCache cache = StorageCache.getInstance();
+    String cacheKey = StorageCache.getNamespaceKey(user, namespace);
+    String result = cache.get(cacheKey);
+    if (result != null)
+    {
+      return result;
+    }
+    long version = cache.getVersion();
+
+    List<StorageKeyEntry> entries;
+    Session session = PluginHibernateUtil.openSession();
+    try
+    {
+      entries = session.getNamedQuery("org.pentaho.cdf.storage.StorageKeyEntry.getKeysForNamespace").setString("user", user).setString("namespace", namespace).list();
+    }
+    finally
+    {
+      PluginHibernateUtil.closeSession(session);
+    }
+
+    JSONObject json = new JSONObject();
+    for (StorageKeyEntry entry : entries)
+    {
+      json.put(entry.getStorageKey(), entry.getStorageValue());
+    }
+    result = json.toString();
+
+    cache.putIfUnchanged(cacheKey, result, version);
+    return result;
+
+  }
+
+  /**
+   * The namespace keys are stored under: the 'namespace' parameter if given,
+   * otherwise the dashboard being rendered (/solution/path/file).
+   */
+  public static String getNamespace(IParameterProvider requestParams)
+  {
+    String namespace = requestParams.getStringParameter("namespace", null);
+    if (namespace != null && namespace.length() > 0)
+    {
+      return namespace;
+    }
+    String solution = requestParams.getStringParameter("solution", "");
+    String path = requestParams.getStringParameter("path", "");
+    String file = requestParams.getStringParameter("file", requestParams.getStringParameter("action", ""));
+    return ("/" + solution + "/" + path + "/" + file).replaceAll("/+", "/");
+  }
+
+  private String getKeyParameter(IParameterProvider requestParams) throws InvalidCdfOperationException
+  {
+    String key = requestParams.getStringParameter("key", null);
+    if (key == null || key.length() == 0)
+    {
+      logger.error("Parameter 'key' Can't be null");
+      throw new InvalidCdfOperationException("Parameter 'key' Can't be null");
+    }
+    return key;
+  }
+
+  /**
+   * Flushes the pending write of a user that is logging out.
+   */
+  public void onLogout(IPentahoSession session)
+  {
+    if (session.getName() != null)
+    {
+      flushPending(session.getName());
+    }
+  }
+
+  /**
+   * Writes the pending write of a user now, if there's one.
+   */
+  private void flushPending(String user)
+  {
+    PendingWrite pending = pendingWrites.get(user);
+    if (pending != null)
+    {
+      Map<String, PendingWrite> batch = new HashMap<String, PendingWrite>();
+      batch.put(user, pending);
+      flush(batch);
+    }
+  }
+
+  /**
+   * Stops the instance's background writer, if one was ever created.
+   */
+  public static synchronized void shutdownInstance()
+  {
+    if (_instance != null)
+    {
+      _instance.shutdown();
+    }
+  }
+
+  /**
+   * Writes every pending store/delete and stops the background writer.
+   */
+  public void shutdown()
+  {
+    ScheduledExecutorService stopped = writer;
+    if (stopped != null)
+    {
+      // Stores from now on are written straight away
+      writer = null;
+      stopped.shutdown();
+      flush(new HashMap<String, PendingWrite>(pendingWrites));
+    }
+  }
+
+  /**
+   * Writes a batch of pending stores/deletes, MAX_FLUSH_SIZE users per
+   * transaction. Entries are only dropped from the buffer if they weren't
+   * replaced in the meantime, so a newer write made during the flush is kept
+   * for the next one.
+   * <p/>
+   * When a transaction fails its entries are written one by one, so that a
+   * bad one doesn't hold the others back; one that keeps failing is given up
+   * after MAX_FLUSH_FAILURES flushes.
+   */
+  private synchronized void flush(Map<String, PendingWrite> batch)
+  {
+
+    List<String> users = new ArrayList<String>(batch.keySet());
+    for (int start = 0; start < users.size(); start += MAX_FLUSH_SIZE)
+    {
+      Map<String, PendingWrite> chunk = new HashMap<String, PendingWrite>();
+      for (String user : users.subList(start, Math.min(start + MAX_FLUSH_SIZE, users.size())))
+      {
+        chunk.put(user, batch.get(user));
+      }
+
+      try
+      {
+        write(chunk);
+        logger.debug("Flushed " + chunk.size() + " storage entries");
+        continue;
+      }
+      catch (Exception ex)
+      {
+        logger.error("Error flushing storage entries: " + Util.getExceptionDescription(ex));
+      }
+
+      for (Map.Entry<String, PendingWrite> write : chunk.entrySet())
+      {
+        try
+        {
+          write(Collections.singletonMap(write.getKey(), write.getValue()));
+        }
+        catch (Exception ex)
+        {
+          PendingWrite pending = write.getValue();
+          if (++pending.failures < MAX_FLUSH_FAILURES)
+          {
+            // Kept pending, we'll retry on the next flush
+            continue;
+          }
+          logger.error("Giving up storage entry of user " + write.getKey() + " after " + pending.failures + " failed writes: " + Util.getExceptionDescription(ex));
+          if (pendingWrites.remove(write.getKey(), pending))
+          {
+            // Read it back from the database
+            StorageCache.getInstance().invalidate(write.getKey());
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes pending stores/deletes in a single transaction and drops them from
+   * the buffer, unless they were replaced meanwhile.
+   */
+  @SuppressWarnings("unchecked")
+  private void write(Map<String, PendingWrite> batch) throws PluginHibernateException
+  {
+
+    Session session = PluginHibernateUtil.openSession();
+    try
+    {
+      session.beginTransaction();
+
+      Query query = session.getNamedQuery("org.pentaho.cdf.storage.StorageEntry.getStorageForUsers").setParameterList("users", new ArrayList<String>(batch.keySet()));
+      Map<String, StorageEntry> entries = new HashMap<String, StorageEntry>();
+      for (StorageEntry storageEntry : (List<StorageEntry>) query.list())
+      {
+        entries.put(storageEntry.getUser(), storageEntry);
+      }
+
+      for (Map.Entry<String, PendingWrite> write : batch.entrySet())
+      {
+        StorageEntry storageEntry = entries.get(write.getKey());
+        if (write.getValue().value == null)
+        {
+          if (storageEntry != null)
+          {
+            session.delete(storageEntry);
+          }
+          continue;
+        }
+        if (storageEntry == null)
+        {
+          storageEntry = new StorageEntry();
+          storageEntry.setUser(write.getKey());
+        }
+        storageEntry.setStorageValue(write.getValue().value);
+        storageEntry.setLastUpdatedDate(write.getValue().date);
+        session.save(storageEntry);
+      }
+
+      session.flush();
+      session.getTransaction().commit();
+    }
+    finally
+    {
+      // Rolls back whatever didn't commit
+      PluginHibernateUtil.closeSession(session);
+    }
+
+    for (Map.Entry<String, PendingWrite> write : batch.entrySet())
+    {
+      pendingWrites.remove(write.getKey(), write.getValue());
+    }
+  }
+
+  private void startWriteBehind()
+  {
+
+    IPluginResourceLoader resLoader = PentahoSystem.get(IPluginResourceLoader.class, null);
+    if (!"true".equalsIgnoreCase(resLoader.getPluginSetting(StorageEngine.class, "settings/storage/write-behind")))
+    {
+      return;
+    }
+
+    long flushInterval = DEFAULT_FLUSH_INTERVAL;
+    String interval = resLoader.getPluginSetting(StorageEngine.class, "settings/storage/flush-interval");
+    if (interval != null && interval.trim().length() > 0)
+    {
+      flushInterval = Long.parseLong(interval.trim());
+    }
+
+    writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+
+      public Thread newThread(Runnable r)
+      {
+        Thread thread = new Thread(r, "cdf-storage-writer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    writer.scheduleWithFixedDelay(new Runnable()
+    {
 
-    return PluginHibernateUtil.getSession();
+      public void run()
+      {
+        flush(new HashMap<String, PendingWrite>(pendingWrites));
+      }
+    }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
 
+    PentahoSystem.addLogoutListener(this);
+    logger.info("Storage write-behind enabled, flushing every " + flushInterval + " ms");
   }
 
   private void initialize() throws PluginHibernateException
@@ -229,10 +783,12 @@ public class StorageEngine
     // Get hbm file
     IPluginResourceLoader resLoader = PentahoSystem.get(IPluginResourceLoader.class, null);
     InputStream in = resLoader.getResourceAsStream(StorageEngine.class, "resources/hibernate/Storage.hbm.xml");
+    InputStream keysIn = resLoader.getResourceAsStream(StorageEngine.class, "resources/hibernate/StorageKeys.hbm.xml");
 
     // Close session and rebuild
     PluginHibernateUtil.closeSession();
     PluginHibernateUtil.getConfiguration().addInputStream(in);
+    PluginHibernateUtil.getConfiguration().addInputStream(keysIn);
     PluginHibernateUtil.rebuildSessionFactory();
 
   }
@@ -0,0 +1,182 @@
+package org.pentaho.cdf.storage;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+
+/**
+ * A single key of a user's storage, scoped to a namespace (usually the
+ * dashboard it belongs to).
+ * <p/>
+ * keyHash identifies the user, namespace and key in one short column, so the
+ * database can keep them unique: the three columns together are too long for
+ * an index in some databases (MySQL with utf8).
+ */
+public class StorageKeyEntry implements Serializable
+{
+
+  private static final long serialVersionUID = 1L;
+  private int storageKeyId;
+  private String keyHash;
+  private String user;
+  private String namespace;
+  private String storageKey;
+  private String storageValue;
+  private Date lastUpdatedDate;
+
+  public StorageKeyEntry()
+  {
+    this.lastUpdatedDate = new Date();
+  }
+
+  public StorageKeyEntry(String user, String namespace, String storageKey, String storageValue)
+  {
+    this();
+    this.user = user;
+    this.namespace = namespace;
+    this.storageKey = storageKey;
+    this.storageValue = storageValue;
+    updateKeyHash();
+  }
+
+  /**
+   * @return SHA-1 of the user, namespace and key, in hex
+   */
+  public static String hashKey(String user, String namespace, String storageKey)
+  {
+    try
+    {
+      // Length prefixed, so the parts can't run into each other
+      String id = user.length() + ":" + user + namespace.length() + ":" + namespace + storageKey;
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(id.getBytes("UTF-8"));
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest)
+      {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      throw new IllegalStateException(e.toString());
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      throw new IllegalStateException(e.toString());
+    }
+  }
+
+  private void updateKeyHash()
+  {
+    keyHash = user != null && namespace != null && storageKey != null ? hashKey(user, namespace, storageKey) : null;
+  }
+
+  /**
+   * @return the keyHash
+   */
+  public String getKeyHash()
+  {
+    return keyHash;
+  }
+
+  /**
+   * @return the storageKeyId
+   */
+  public int getStorageKeyId()
+  {
+    return storageKeyId;
+  }
+
+  /**
+   * @param storageKeyId the storageKeyId to set
+   */
+  public void setStorageKeyId(int storageKeyId)
+  {
+    this.storageKeyId = storageKeyId;
+  }
+
+  /**
+   * @return the user
+   */
+  public String getUser()
+  {
+    return user;
+  }
+
+  /**
+   * @param user the user to set
+   */
+  public void setUser(String user)
+  {
+    this.user = user;
+    updateKeyHash();
+  }
+
+  /**
+   * @return the namespace
+   */
+  public String getNamespace()
+  {
+    return namespace;
+  }
+
+  /**
+   * @param namespace the namespace to set
+   */
+  public void setNamespace(String namespace)
+  {
+    this.namespace = namespace;
+    updateKeyHash();
+  }
+
+  /**
+   * @return the storageKey
+   */
+  public String getStorageKey()
+  {
+    return storageKey;
+  }
+
+  /**
+   * @param storageKey the storageKey to set
+   */
+  public void setStorageKey(String storageKey)
+  {
+    this.storageKey = storageKey;
+    updateKeyHash();
+  }
+
+  /**
+   * @return the storageValue
+   */
+  public String getStorageValue()
+  {
+    return storageValue;
+  }
+
+  /**
+   * @param storageValue the storageValue to set
+   */
+  public void setStorageValue(String storageValue)
+  {
+    this.storageValue = storageValue;
+  }
+
+  /**
+   * @return the lastUpdateDate
+   */
+  public Date getLastUpdatedDate()
+  {
+    return lastUpdatedDate;
+  }
+
+  /**
+   * @param lastUpdatedDate the lastUpdatedDate to set
+   */
+  public void setLastUpdatedDate(Date lastUpdatedDate)
+  {
+    this.lastUpdatedDate = lastUpdatedDate;
+  }
+}
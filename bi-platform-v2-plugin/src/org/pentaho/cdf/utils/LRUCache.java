@@ -0,0 +1,114 @@
+package org.pentaho.cdf.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Small thread safe LRU cache bounded by total size. By default every entry
+ * weighs 1, so the bound is an entry count; subclasses override sizeOf to
+ * bound it by bytes/chars instead.
+ */
+public class LRUCache<K, V>
+{
+
+  private final LinkedHashMap<K, V> entries = new LinkedHashMap<K, V>(16, 0.75f, true);
+  private final long maxSize;
+  private long size;
+  private long hits;
+  private long misses;
+
+  public LRUCache(final long maxSize)
+  {
+    this.maxSize = maxSize;
+  }
+
+  protected long sizeOf(final V value)
+  {
+    return 1;
+  }
+
+  public synchronized V get(final K key)
+  {
+    final V value = entries.get(key);
+    if (value == null)
+    {
+      misses++;
+    }
+    else
+    {
+      hits++;
+    }
+    return value;
+  }
+
+  public synchronized void put(final K key, final V value)
+  {
+    final long valueSize = sizeOf(value);
+    if (valueSize > maxSize)
+    {
+      // Would evict everything else and still not fit
+      remove(key);
+      return;
+    }
+    final V previous = entries.put(key, value);
+    if (previous != null)
+    {
+      size -= sizeOf(previous);
+    }
+    size += valueSize;
+
+    final Iterator<Map.Entry<K, V>> eldest = entries.entrySet().iterator();
+    while (size > maxSize && eldest.hasNext())
+    {
+      size -= sizeOf(eldest.next().getValue());
+      eldest.remove();
+    }
+  }
+
+  public synchronized V remove(final K key)
+  {
+    final V previous = entries.remove(key);
+    if (previous != null)
+    {
+      size -= sizeOf(previous);
+    }
+    return previous;
+  }
+
+  public synchronized void clear()
+  {
+    entries.clear();
+    size = 0;
+  }
+
+  /**
+   * @return a copy of the keys, least recently used first
+   */
+  public synchronized List<K> getKeys()
+  {
+    return new ArrayList<K>(entries.keySet());
+  }
+
+  public synchronized int getEntryCount()
+  {
+    return entries.size();
+  }
+
+  public synchronized long getSize()
+  {
+    return size;
+  }
+
+  public synchronized long getHits()
+  {
+    return hits;
+  }
+
+  public synchronized long getMisses()
+  {
+    return misses;
+  }
+}
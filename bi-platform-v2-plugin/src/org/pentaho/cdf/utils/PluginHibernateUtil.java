@@ -5,6 +5,8 @@
 package org.pentaho.cdf.utils;
 
 import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Properties;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.HibernateException;
@@ -12,6 +14,11 @@ import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.pentaho.cdf.PluginHibernateException;
 import org.pentaho.platform.api.engine.IPluginResourceLoader;
 import org.pentaho.platform.engine.core.system.PentahoSystem;
@@ -27,7 +34,7 @@ public class PluginHibernateUtil
 
   private static final Log logger = LogFactory.getLog(PluginHibernateUtil.class);
   private static Configuration configuration;
-  private static SessionFactory sessionFactory;
+  private static volatile SessionFactory sessionFactory;
   private static final byte[] lock = new byte[0];
   private static final ThreadLocal<Session> threadSession = new ThreadLocal<Session>();
   private static final ThreadLocal<Transaction> threadTransaction = new ThreadLocal<Transaction>();
@@ -52,7 +59,11 @@ public class PluginHibernateUtil
     final String hibernateAvailable = resLoader.getPluginSetting(PluginHibernateUtil.class, "settings/hibernate-available");
 
     if ("true".equalsIgnoreCase(hibernateAvailable)) {
-      configuration.setProperties(HibernateUtil.getConfiguration().getProperties());
+      final Properties properties = new Properties();
+      properties.putAll(HibernateUtil.getConfiguration().getProperties());
+      configurePool(properties, resLoader);
+      configureCache(properties, resLoader);
+      configuration.setProperties(properties);
       sessionFactory = configuration.buildSessionFactory();
     }
     return true;
@@ -61,6 +72,156 @@ public class PluginHibernateUtil
   }
 
 
+  /**
+   * Sets up the connection pool of our own SessionFactory from settings/hibernate-pool.
+   * This only applies when the platform connects straight through JDBC; with a
+   * JNDI datasource the pool belongs to the container. c3p0 is used when it's on
+   * the classpath, otherwise we size hibernate's built in pool.
+   */
+  private static void configurePool(final Properties properties, final IPluginResourceLoader resLoader)
+  {
+
+    if (properties.getProperty(Environment.DATASOURCE) != null || properties.getProperty(Environment.URL) == null)
+    {
+      return;
+    }
+
+    final String minSize = resLoader.getPluginSetting(PluginHibernateUtil.class, "settings/hibernate-pool/min-size", "2");
+    final String maxSize = resLoader.getPluginSetting(PluginHibernateUtil.class, "settings/hibernate-pool/max-size", "20");
+    final String timeout = resLoader.getPluginSetting(PluginHibernateUtil.class, "settings/hibernate-pool/timeout", "300");
+    final String maxStatements = resLoader.getPluginSetting(PluginHibernateUtil.class, "settings/hibernate-pool/max-statements", "50");
+
+    try
+    {
+      Class.forName("com.mchange.v2.c3p0.ComboPooledDataSource");
+      properties.setProperty(Environment.CONNECTION_PROVIDER, "org.hibernate.connection.C3P0ConnectionProvider");
+      properties.setProperty(Environment.C3P0_MIN_SIZE, minSize);
+      properties.setProperty(Environment.C3P0_MAX_SIZE, maxSize);
+      properties.setProperty(Environment.C3P0_TIMEOUT, timeout);
+      properties.setProperty(Environment.C3P0_MAX_STATEMENTS, maxStatements);
+      logger.debug("Using c3p0 connection pool, max size " + maxSize);
+    }
+    catch (ClassNotFoundException e)
+    {
+      properties.setProperty(Environment.POOL_SIZE, maxSize);
+      logger.debug("c3p0 not available, using hibernate connection pool of size " + maxSize);
+    }
+  }
+
+
+  /**
+   * Turns on the second level and query caches from settings/hibernate-cache.
+   * Our regions are prefixed with "cdf" so they can share the platform's
+   * ehcache CacheManager without clashing with its own regions. Entities and
+   * queries are only cached when their mapping asks for it.
+   */
+  private static void configureCache(final Properties properties, final IPluginResourceLoader resLoader)
+  {
+
+    if (!"true".equalsIgnoreCase(resLoader.getPluginSetting(PluginHibernateUtil.class, "settings/hibernate-cache/enabled", "true")))
+    {
+      properties.setProperty(Environment.USE_SECOND_LEVEL_CACHE, "false");
+      properties.setProperty(Environment.USE_QUERY_CACHE, "false");
+      return;
+    }
+
+    String provider = resLoader.getPluginSetting(PluginHibernateUtil.class, "settings/hibernate-cache/provider-class", "");
+    if (provider == null || provider.trim().length() == 0)
+    {
+      try
+      {
+        Class.forName("net.sf.ehcache.CacheManager");
+        provider = "org.hibernate.cache.SingletonEhCacheProvider";
+      }
+      catch (ClassNotFoundException e)
+      {
+        logger.warn("ehcache not available and no settings/hibernate-cache/provider-class set, comments and storage won't be cached");
+        properties.setProperty(Environment.USE_SECOND_LEVEL_CACHE, "false");
+        properties.setProperty(Environment.USE_QUERY_CACHE, "false");
+        return;
+      }
+    }
+
+    properties.setProperty(Environment.CACHE_PROVIDER, provider.trim());
+    properties.setProperty(Environment.CACHE_REGION_PREFIX, "cdf");
+    properties.setProperty(Environment.USE_SECOND_LEVEL_CACHE, "true");
+    properties.setProperty(Environment.USE_QUERY_CACHE, "true");
+    properties.setProperty(Environment.GENERATE_STATISTICS, "true");
+    logger.debug("Using second level cache provider " + provider);
+  }
+
+
+  /**
+   * Evicts everything our SessionFactory has cached. Hibernate already
+   * invalidates the cached entities and queries of a table whenever it's
+   * written through one of our sessions, so this is only needed when the
+   * tables are changed behind our back.
+   */
+  public static void evictCaches()
+  {
+
+    final SessionFactory factory = PluginHibernateUtil.sessionFactory;
+    if (factory == null)
+    {
+      return;
+    }
+    try
+    {
+      final Iterator<?> entities = factory.getAllClassMetadata().keySet().iterator();
+      while (entities.hasNext())
+      {
+        factory.evictEntity((String) entities.next());
+      }
+      factory.evictQueries();
+    }
+    catch (HibernateException ex)
+    {
+      logger.warn("Error evicting caches " + Util.getExceptionDescription(ex)); //$NON-NLS-1$
+    }
+  }
+
+
+  /**
+   * Hit, miss and put counts of the second level and query caches, overall
+   * and per region.
+   */
+  public static JSONObject getCacheStatistics() throws JSONException
+  {
+
+    final JSONObject json = new JSONObject();
+    final SessionFactory factory = PluginHibernateUtil.sessionFactory;
+    if (factory == null || !factory.getStatistics().isStatisticsEnabled())
+    {
+      json.put("enabled", false);
+      return json;
+    }
+
+    final Statistics statistics = factory.getStatistics();
+    json.put("enabled", true);
+    json.put("secondLevelCacheHits", statistics.getSecondLevelCacheHitCount());
+    json.put("secondLevelCacheMisses", statistics.getSecondLevelCacheMissCount());
+    json.put("secondLevelCachePuts", statistics.getSecondLevelCachePutCount());
+    json.put("queryCacheHits", statistics.getQueryCacheHitCount());
+    json.put("queryCacheMisses", statistics.getQueryCacheMissCount());
+    json.put("queryCachePuts", statistics.getQueryCachePutCount());
+    json.put("queryExecutions", statistics.getQueryExecutionCount());
+
+    final JSONObject regions = new JSONObject();
+    for (final String region : statistics.getSecondLevelCacheRegionNames())
+    {
+      final SecondLevelCacheStatistics regionStatistics = statistics.getSecondLevelCacheStatistics(region);
+      final JSONObject regionJson = new JSONObject();
+      regionJson.put("hits", regionStatistics.getHitCount());
+      regionJson.put("misses", regionStatistics.getMissCount());
+      regionJson.put("puts", regionStatistics.getPutCount());
+      regionJson.put("elementsInMemory", regionStatistics.getElementCountInMemory());
+      regions.put(region, regionJson);
+    }
+    json.put("regions", regions);
+    return json;
+  }
+
+
   /**
    * Returns the SessionFactory used for this static class.
    *
@@ -108,29 +269,77 @@ public class PluginHibernateUtil
 
 
   /**
-   * Retrieves the current Session local to the thread. <p/> If no Session is
-   * open, opens a new Session for the running thread.
+   * Opens a new Session for a single operation. Callers own it and must hand
+   * it back to closeSession(Session) in a finally block.
    *
    * @return Session
    */
-  public static synchronized Session getSession() throws PluginHibernateException
+  public static Session openSession() throws PluginHibernateException
   {
-    Session s = (Session) PluginHibernateUtil.threadSession.get();
     try
     {
-      if (s == null || !s.isOpen())
-      {
-
-        s = PluginHibernateUtil.getSessionFactory().openSession();
-      }
-      PluginHibernateUtil.threadSession.set(s);
-
+      return PluginHibernateUtil.getSessionFactory().openSession();
     }
     catch (HibernateException ex)
     {
       logger.warn("Error creating session " + Util.getExceptionDescription(ex)); //$NON-NLS-1$
       throw new PluginHibernateException("Error creating session", ex); //$NON-NLS-1$
     }
+  }
+
+
+  /**
+   * Closes a Session returned by openSession(), rolling back any transaction
+   * left active by an operation that failed half way.
+   */
+  public static void closeSession(final Session session)
+  {
+    if (session == null || !session.isOpen())
+    {
+      return;
+    }
+    try
+    {
+      final Transaction transaction = session.getTransaction();
+      if (transaction != null && transaction.isActive())
+      {
+        transaction.rollback();
+      }
+    }
+    catch (HibernateException ex)
+    {
+      logger.warn("Error rolling back transaction " + Util.getExceptionDescription(ex)); //$NON-NLS-1$
+    }
+    finally
+    {
+      try
+      {
+        session.close();
+      }
+      catch (HibernateException ex)
+      {
+        logger.warn("Error closing session " + Util.getExceptionDescription(ex)); //$NON-NLS-1$
+      }
+    }
+  }
+
+
+  /**
+   * Retrieves the current Session local to the thread. <p/> If no Session is
+   * open, opens a new Session for the running thread.
+   *
+   * @return Session
+   * @deprecated use openSession()/closeSession(Session), the thread's session is never closed for you
+   */
+  @Deprecated
+  public static Session getSession() throws PluginHibernateException
+  {
+    Session s = (Session) PluginHibernateUtil.threadSession.get();
+    if (s == null || !s.isOpen())
+    {
+      s = openSession();
+      PluginHibernateUtil.threadSession.set(s);
+    }
     return s;
   }
 
@@ -153,7 +362,7 @@ public class PluginHibernateUtil
   /**
    * Closes the Session local to the thread.
    */
-  public static synchronized void closeSession() throws PluginHibernateException
+  public static void closeSession() throws PluginHibernateException
   {
     try
     {
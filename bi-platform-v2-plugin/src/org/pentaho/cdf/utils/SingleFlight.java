@@ -0,0 +1,85 @@
+package org.pentaho.cdf.utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs work once for all the callers that ask for it under the same key at
+ * the same time: the first caller runs it, and the ones arriving while it
+ * runs wait for it and get the same result, or exception. Nothing is kept
+ * once it's done, callers arriving later run it again.
+ */
+public class SingleFlight<K, V>
+{
+
+  private final ConcurrentHashMap<K, FutureTask<V>> running = new ConcurrentHashMap<K, FutureTask<V>>();
+  private final AtomicLong executions = new AtomicLong();
+  private final AtomicLong shared = new AtomicLong();
+
+  /**
+   * @return the result of work, run by this caller or by another one with
+   *         the same key
+   * @throws Exception whatever work threw
+   */
+  public V execute(final K key, final Callable<V> work) throws Exception
+  {
+    final FutureTask<V> task = new FutureTask<V>(work);
+    final FutureTask<V> leader = running.putIfAbsent(key, task);
+    if (leader != null)
+    {
+      shared.incrementAndGet();
+      return get(leader);
+    }
+
+    executions.incrementAndGet();
+    try
+    {
+      task.run();
+    }
+    finally
+    {
+      running.remove(key, task);
+    }
+    return get(task);
+  }
+
+  private V get(final FutureTask<V> task) throws Exception
+  {
+    try
+    {
+      return task.get();
+    }
+    catch (ExecutionException e)
+    {
+      final Throwable cause = e.getCause();
+      if (cause instanceof Exception)
+      {
+        throw (Exception) cause;
+      }
+      if (cause instanceof Error)
+      {
+        throw (Error) cause;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * @return how many times work was actually run
+   */
+  public long getExecutions()
+  {
+    return executions.get();
+  }
+
+  /**
+   * @return how many callers got the result of a run they didn't start
+   */
+  public long getShared()
+  {
+    return shared.get();
+  }
+}
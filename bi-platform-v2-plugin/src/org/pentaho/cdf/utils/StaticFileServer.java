@@ -0,0 +1,139 @@
+package org.pentaho.cdf.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Writes files to responses as they are on disk: Content-Length,
+ * Last-Modified and ETag are set before the content, conditional requests
+ * the file hasn't changed since get a 304 and no content, and the content is
+ * transferred from the file channel rather than copied through a buffer.
+ */
+public class StaticFileServer
+{
+
+  private StaticFileServer()
+  {
+  }
+
+  /**
+   * Writes file to out, with its headers when there's a response.
+   *
+   * @param request  may be null
+   * @param response may be null, then only the content is written
+   * @return false if the client's copy is up to date and nothing was written
+   * @throws FileNotFoundException if file isn't a readable file
+   */
+  public static boolean serve(final File file, final HttpServletRequest request, final HttpServletResponse response,
+      final OutputStream out) throws IOException
+  {
+    if (!file.isFile())
+    {
+      throw new FileNotFoundException(file.getPath());
+    }
+
+    final FileInputStream in = new FileInputStream(file);
+    try
+    {
+      final FileChannel channel = in.getChannel();
+      final long length = channel.size();
+      final long lastModified = file.lastModified();
+
+      if (response != null)
+      {
+        final String etag = getETag(length, lastModified);
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+        if (request != null && isNotModified(request, etag, lastModified))
+        {
+          response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          return false;
+        }
+        if (length <= Integer.MAX_VALUE)
+        {
+          response.setContentLength((int) length);
+        }
+        else
+        {
+          response.setHeader("Content-Length", Long.toString(length));
+        }
+      }
+
+      final WritableByteChannel target = Channels.newChannel(out);
+      long position = 0;
+      while (position < length)
+      {
+        final long sent = channel.transferTo(position, length - position, target);
+        if (sent <= 0)
+        {
+          // Truncated meanwhile
+          break;
+        }
+        position += sent;
+      }
+      out.flush();
+      return true;
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  /**
+   * @return a strong validator for the file's content, changing whenever its
+   *         size or modification time do
+   */
+  public static String getETag(final long length, final long lastModified)
+  {
+    return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+  }
+
+  /**
+   * @return true if the request is conditional and the client's copy is
+   *         current: If-None-Match has the etag, or there's no If-None-Match
+   *         and the file hasn't changed since If-Modified-Since
+   */
+  public static boolean isNotModified(final HttpServletRequest request, final String etag, final long lastModified)
+  {
+    final String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null)
+    {
+      for (String tag : ifNoneMatch.split(","))
+      {
+        tag = tag.trim();
+        if (tag.startsWith("W/"))
+        {
+          tag = tag.substring(2);
+        }
+        if (tag.equals(etag) || tag.equals("*"))
+        {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    final long ifModifiedSince;
+    try
+    {
+      ifModifiedSince = request.getDateHeader("If-Modified-Since");
+    }
+    catch (IllegalArgumentException e)
+    {
+      // Not a date, ignored
+      return false;
+    }
+    // HTTP dates have no milliseconds
+    return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+  }
+}
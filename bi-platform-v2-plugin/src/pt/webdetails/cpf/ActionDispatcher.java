@@ -0,0 +1,152 @@
+package pt.webdetails.cpf;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import pt.webdetails.cpf.annotations.AccessLevel;
+import pt.webdetails.cpf.annotations.Exposed;
+import pt.webdetails.cpf.annotations.OutputType;
+
+/**
+ * Table of the actions a class answers to, built once from its public methods
+ * that take a given list of parameters. Methods are looked up, and their
+ * annotations read, when the table is built, so dispatching a request is a map
+ * lookup and an invoke. Each action also keeps its own call counters, see
+ * getStatistics().
+ */
+public class ActionDispatcher {
+
+    private final Map<String, Action> actions;
+
+    /**
+     * One action: the method to call, what its annotations say about it and
+     * how it has been doing.
+     */
+    public static class Action {
+
+        private final String name;
+        private final Method method;
+        private final boolean exposed;
+        private final String outputType;
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        Action(final String name, final Method method) {
+            this.name = name;
+            this.method = method;
+            this.exposed = method.isAnnotationPresent(Exposed.class) && method.getAnnotation(Exposed.class).accessLevel() == AccessLevel.PUBLIC;
+            this.outputType = method.isAnnotationPresent(OutputType.class) ? method.getAnnotation(OutputType.class).value() : null;
+            // Skip the access checks on every invoke
+            method.setAccessible(true);
+        }
+
+        public Object invoke(final Object target, final Object... args) throws InvocationTargetException, IllegalAccessException {
+            final long start = System.nanoTime();
+            calls.incrementAndGet();
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                errors.incrementAndGet();
+                throw e;
+            } finally {
+                totalNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return true if the method is annotated as @Exposed with PUBLIC access
+         */
+        public boolean isExposed() {
+            return exposed;
+        }
+
+        /**
+         * @return the @OutputType of the method, or null if it has none
+         */
+        public String getOutputType() {
+            return outputType;
+        }
+
+        public long getCalls() {
+            return calls.get();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public long getTotalMillis() {
+            return totalNanos.get() / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + getCalls() + " calls, " + getErrors() + " errors, " + getTotalMillis() + " ms";
+        }
+    }
+
+    /**
+     * @param type class whose public methods are the actions
+     * @param parameterTypes parameters an action method must take, exactly
+     * @param excluded names of matching methods that aren't actions
+     */
+    public ActionDispatcher(final Class<?> type, final Class<?>[] parameterTypes, final String... excluded) {
+        final List<String> excludedNames = Arrays.asList(excluded);
+        final Map<String, Action> table = new HashMap<String, Action>();
+        for (final Method method : type.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers())
+                    || method.getDeclaringClass() == Object.class
+                    || excludedNames.contains(method.getName())
+                    || !Arrays.equals(method.getParameterTypes(), parameterTypes)) {
+                continue;
+            }
+            table.put(method.getName(), new Action(method.getName(), method));
+        }
+        this.actions = Collections.unmodifiableMap(table);
+    }
+
+    /**
+     * @return the action with the given name, or null if there's none
+     */
+    public Action get(final String name) {
+        return name != null ? actions.get(name) : null;
+    }
+
+    public Collection<Action> getActions() {
+        return actions.values();
+    }
+
+    /**
+     * @return {name: {"calls", "errors", "totalMillis"}, ...} for the actions
+     *         that were called
+     */
+    public JSONObject getStatistics() throws JSONException {
+        final JSONObject json = new JSONObject();
+        for (final Action action : actions.values()) {
+            if (action.getCalls() > 0) {
+                final JSONObject counters = new JSONObject();
+                counters.put("calls", action.getCalls());
+                counters.put("errors", action.getErrors());
+                counters.put("totalMillis", action.getTotalMillis());
+                json.put(action.getName(), counters);
+            }
+        }
+        return json;
+    }
+}
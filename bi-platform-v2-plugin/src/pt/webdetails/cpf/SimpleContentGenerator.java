@@ -6,7 +6,7 @@ package pt.webdetails.cpf;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.lang.StringUtils;
@@ -15,9 +15,6 @@ import org.apache.commons.logging.LogFactory;
 import org.pentaho.platform.api.engine.IParameterProvider;
 import org.pentaho.platform.api.repository.IContentItem;
 import org.pentaho.platform.engine.services.solution.BaseContentGenerator;
-import pt.webdetails.cpf.annotations.AccessLevel;
-import pt.webdetails.cpf.annotations.Exposed;
-import pt.webdetails.cpf.annotations.OutputType;
 
 /**
  *
@@ -26,6 +23,7 @@ import pt.webdetails.cpf.annotations.OutputType;
 public class SimpleContentGenerator extends BaseContentGenerator {
 
     private static final long serialVersionUID = 1L;
+    private static final ConcurrentHashMap<Class<?>, ActionDispatcher> dispatchers = new ConcurrentHashMap<Class<?>, ActionDispatcher>();
     protected Log logger = LogFactory.getLog(this.getClass());
 
     @Override
@@ -36,7 +34,6 @@ public class SimpleContentGenerator extends BaseContentGenerator {
 
         try {
             final OutputStream out = contentItem.getOutputStream(null);
-            final Class<?>[] params = {OutputStream.class};
 
             String[] pathSections = StringUtils.split(pathParams.getStringParameter("path", null), "/");
 
@@ -45,17 +42,16 @@ public class SimpleContentGenerator extends BaseContentGenerator {
                 final String method = StringUtils.lowerCase(pathSections[0]);
 
                 try {
-                    final Method mthd = this.getClass().getMethod(method, params);
-                    boolean exposed = mthd.isAnnotationPresent(Exposed.class),
-                            accessible = exposed && mthd.getAnnotation(Exposed.class).accessLevel() == AccessLevel.PUBLIC,
-                            outputTypePresent = mthd.isAnnotationPresent(OutputType.class) ;
-
-                    String outputType = outputTypePresent? mthd.getAnnotation(OutputType.class).value() : "";
-                    if (outputTypePresent) {
-                        setResponseHeaders(outputType, null);
+                    final ActionDispatcher.Action action = getDispatcher().get(method);
+                    if (action == null) {
+                        throw new NoSuchMethodException(method);
                     }
-                    if (accessible) {
-                        mthd.invoke(this, out);
+
+                    if (action.getOutputType() != null) {
+                        setResponseHeaders(action.getOutputType(), null);
+                    }
+                    if (action.isExposed()) {
+                        action.invoke(this, out);
                     } else {
                         throw new IllegalAccessException("Method " + method + " has the wrong access level");
                     }
@@ -81,6 +77,22 @@ public class SimpleContentGenerator extends BaseContentGenerator {
         }
     }
 
+    /**
+     * Actions of this content generator: its public methods taking just an
+     * OutputStream, resolved once per class.
+     */
+    private ActionDispatcher getDispatcher() {
+        ActionDispatcher dispatcher = dispatchers.get(getClass());
+        if (dispatcher == null) {
+            dispatcher = new ActionDispatcher(getClass(), new Class<?>[]{OutputStream.class});
+            final ActionDispatcher existing = dispatchers.putIfAbsent(getClass(), dispatcher);
+            if (existing != null) {
+                dispatcher = existing;
+            }
+        }
+        return dispatcher;
+    }
+
     @Override
     public Log getLogger() {
         return logger;